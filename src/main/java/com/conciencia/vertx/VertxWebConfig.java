@@ -1,27 +1,53 @@
 package com.conciencia.vertx;
 
+import com.conciencia.vertx.verticles.audit.AuditLogVerticle;
+import com.conciencia.vertx.verticles.registry.EntityDispatcherVerticle;
+import com.conciencia.vertx.verticles.registry.EntityRegistry;
 import com.conciencia.vertx.verticles.repository.DataRepository;
 import com.conciencia.vertx.verticles.web.WebServerVerticle;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.ext.sql.SQLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Vertx Web Server automatic configuration
- * 
+ *
+ * El arranque se realiza en fases mediante el método start():
+ *
+ * 1.- Calienta el pool de conexiones hasta el mínimo configurado.
+ * 2.- Lee de la base de datos las tablas registradas con registerSchema().
+ * 3.- Despliega en paralelo todos los repositorios registrados, los
+ *     dispatchers de EntityRegistry y la bitácora de auditoría, si se habilitó.
+ * 4.- Despliega el servidor web (y abre el puerto http).
+ *
+ * El servidor no recibe tráfico hasta que las fases previas terminan.
+ *
  * @author Ernesto Cantú Valle
  * 24/05/20
  */
 public class VertxWebConfig {
-    
+
     private Vertx vertx;
-        
-    /* Objeto de conexión con cliente*/ 
+
+    /* Objeto de conexión con cliente*/
     public static JDBCClient client;
-    
+
+    /* Indica si el arranque terminó y el servidor puede atender peticiones */
+    private static volatile boolean ready = false;
+
+    /* Duración en ms de cada fase del arranque */
+    private static volatile JsonObject startupPhases = new JsonObject();
+
     /* Variables para conexión de BD*/
     private String host;
     private String db;
@@ -29,69 +55,383 @@ public class VertxWebConfig {
     private String password;
     private String driverClass;
 
+    /* Número de conexiones que se abren antes de recibir tráfico */
+    private int minPoolSize = 5;
+
+    private static final int MAX_POOL_SIZE = 30;
+
     /* Objeto de configuración para bd*/
     private JsonObject config;
 
-    
-    public VertxWebConfig(boolean requireStaticContent,boolean requireRest, 
+    private boolean requireStaticContent;
+    private boolean requireRest;
+
+    /* Repositorios registrados antes de llamar a start() */
+    private final List<DataRepository> repositories = new ArrayList<>();
+
+    private boolean started = false;
+
+    /* Future del arranque; null mientras no se llame a start() */
+    private Future<Void> startup;
+
+    /* Bitácora de auditoría; null si no se habilitó */
+    private AuditLogVerticle auditLog;
+
+    /* Tablas a registrar desde DatabaseMetaData; null si no se solicitó */
+    private List<String> schemaTables;
+
+    /* Instancias de EntityDispatcherVerticle */
+    private int dispatcherInstances = Runtime.getRuntime().availableProcessors();
+
+
+    /**
+     * Crea la configuración y arranca el servidor de inmediato, como en
+     * versiones anteriores. Los repositorios registrados después se despliegan
+     * al momento, por lo que /health/ready puede reportar disponible antes de
+     * que existan. Como el arranque ya comenzó, los métodos que deben llamarse
+     * antes de start() lanzan IllegalStateException. Para configurar el pool,
+     * la auditoría o las entidades usar el constructor con startNow = false y
+     * llamar a start().
+     */
+    public VertxWebConfig(boolean requireStaticContent,boolean requireRest,
             String host, String db, String user, String password, String driverClass) {
+        this(requireStaticContent, requireRest, host, db, user, password, driverClass, true);
+    }
+
+    /**
+     * Crea la configuración. Si startNow es false, el servidor no arranca hasta
+     * llamar a start(), lo que permite configurar el pool, la auditoría y las
+     * entidades, y registrar repositorios antes de recibir tráfico.
+     */
+    public VertxWebConfig(boolean requireStaticContent,boolean requireRest,
+            String host, String db, String user, String password, String driverClass,
+            boolean startNow) {
+        this.requireStaticContent = requireStaticContent;
+        this.requireRest = requireRest;
         this.host = host;
         this.db = db;
         this.user = user;
         this.password = password;
         this.driverClass = driverClass;
         this.vertx = Vertx.vertx();
-        
-        initDBClient().setHandler(hndlr->{
+        if(startNow)
+            start();
+    }
+
+    /**
+     * Establece el número mínimo de conexiones que se abren durante el
+     * arranque. Debe llamarse antes de start().
+     *
+     * @param minPoolSize conexiones a calentar (entre 0 y 30)
+     * @return la misma configuración
+     * @throws IllegalStateException si el servidor ya arrancó
+     */
+    public VertxWebConfig setMinPoolSize(int minPoolSize){
+        checkNotStarted("setMinPoolSize");
+        this.minPoolSize = Math.max(0, Math.min(minPoolSize, MAX_POOL_SIZE));
+        return this;
+    }
+
+    /**
+     * Habilita la bitácora de auditoría de escrituras con valores por defecto:
+     * lotes cada 200 ms, rotación a los 64 MB y hasta 65536 registros en cola.
+     * Debe llamarse antes de start().
+     *
+     * @param file archivo de auditoría
+     * @return la misma configuración
+     * @throws IllegalStateException si el servidor ya arrancó
+     */
+    public VertxWebConfig enableAudit(String file){
+        return enableAudit(file, 200, 64L * 1024 * 1024, 65536);
+    }
+
+    /**
+     * Habilita la bitácora de auditoría de escrituras. Una escritura queda en
+     * disco a más tardar flushInterval ms después de responderse.
+     * Debe llamarse antes de start().
+     *
+     * @param file archivo de auditoría
+     * @param flushInterval ms entre cada escritura de lote
+     * @param maxFileSize tamaño en bytes a partir del cual se rota el archivo
+     * @param queueCapacity registros máximos en espera de escribirse
+     * @return la misma configuración
+     * @throws IllegalStateException si el servidor ya arrancó
+     */
+    public VertxWebConfig enableAudit(String file, long flushInterval, long maxFileSize, int queueCapacity){
+        checkNotStarted("enableAudit");
+        this.auditLog = new AuditLogVerticle(file, flushInterval, maxFileSize, queueCapacity);
+        return this;
+    }
+
+    /**
+     * Registra entidades declarativas, atendidas por EntityDispatcherVerticle
+     * sin necesidad de escribir un repositorio por entidad. Debe llamarse
+     * antes de start(), ya que los dispatchers se despliegan durante el
+     * arranque.
+     *
+     * @param definitions configuraciones con el formato de EntityDefinition.fromJson
+     * @return la misma configuración
+     * @throws IllegalStateException si el servidor ya arrancó
+     */
+    public VertxWebConfig registerEntities(JsonArray definitions){
+        checkNotStarted("registerEntities");
+        EntityRegistry.register(definitions);
+        return this;
+    }
+
+    /**
+     * Registra como entidades las tablas indicadas, leyendo sus columnas de la
+     * base de datos durante el arranque. Sin parámetros registra todas las
+     * tablas. Debe llamarse antes de start().
+     *
+     * @param tables tablas a registrar
+     * @return la misma configuración
+     * @throws IllegalStateException si el servidor ya arrancó
+     */
+    public VertxWebConfig registerSchema(String... tables){
+        checkNotStarted("registerSchema");
+        this.schemaTables = Arrays.asList(tables);
+        return this;
+    }
+
+    /**
+     * Establece el número de instancias de EntityDispatcherVerticle. Por
+     * defecto es el número de procesadores. Debe llamarse antes de start().
+     *
+     * @param dispatcherInstances instancias a desplegar
+     * @return la misma configuración
+     * @throws IllegalStateException si el servidor ya arrancó
+     */
+    public VertxWebConfig setDispatcherInstances(int dispatcherInstances){
+        checkNotStarted("setDispatcherInstances");
+        this.dispatcherInstances = Math.max(1, dispatcherInstances);
+        return this;
+    }
+
+    /* Los valores de arranque ya se leyeron (o se están leyendo) en start() */
+    private void checkNotStarted(String method){
+        if(started)
+            throw new IllegalStateException(method + " must be called before start()");
+    }
+
+    /**
+     * Registra un repositorio. Si el servidor aún no arranca, el repositorio
+     * se despliega junto con los demás durante start(); si ya arrancó, se
+     * despliega de inmediato.
+     *
+     * @param repo repositorio a desplegar
+     */
+    public void deployRepositoy(DataRepository repo){
+        if(started){
+            deploy(repo);
+        }else{
+            repositories.add(repo);
+        }
+    }
+
+    /**
+     * Arranca el servidor por fases. El future se completa cuando el puerto
+     * http está abierto y todos los repositorios registrados están desplegados.
+     *
+     * Llamadas posteriores regresan el mismo future.
+     *
+     * @return future del arranque completo
+     */
+    public Future<Void> start(){
+        if(startup != null)
+            return startup;
+        started = true;
+        JsonObject phases = new JsonObject();
+        long begin = System.currentTimeMillis();
+        long[] mark = {begin};
+
+        startup = initDBClient().compose(pool->{
+            mark[0] = phase(phases, "pool", mark[0]);
+            if(schemaTables == null)
+                return Future.<Void>succeededFuture();
+            return EntityRegistry.loadMetadata(vertx, client, schemaTables);
+        }).compose(registry->{
+            mark[0] = phase(phases, "registry", mark[0]);
+            return deployRepositories();
+        }).compose(repos->{
+            mark[0] = phase(phases, "repositories", mark[0]);
+            return deployWebServer();
+        }).map(web->{
+            phase(phases, "web", mark[0]);
+            phases.put("total", System.currentTimeMillis() - begin);
+            startupPhases = phases;
+            ready = true;
+            return null;
+        });
+
+        startup.setHandler(hndlr->{
             if(hndlr.succeeded()){
-                System.out.println("initDB complete");
+                System.out.println("Startup complete: " + phases.encode());
             }else{
-                System.out.println("initDB error!");
+                System.out.println("Startup error! " + hndlr.cause());
             }
         });
-        
-        vertx.deployVerticle(new WebServerVerticle(requireStaticContent,requireRest),hndlr->{
+        return startup;
+    }
+
+    /**
+     * @return true si el arranque terminó y el servidor recibe tráfico
+     */
+    public static boolean isReady(){
+        return ready;
+    }
+
+    /**
+     * @return duración en ms de cada fase del arranque
+     */
+    public static JsonObject getStartupPhases(){
+        return startupPhases;
+    }
+
+    /**
+     * Marca el servidor como no disponible (p. ej. al replegar el servidor web).
+     */
+    public static void markNotReady(){
+        ready = false;
+    }
+
+    private long phase(JsonObject phases, String name, long since){
+        long now = System.currentTimeMillis();
+        phases.put(name, now - since);
+        return now;
+    }
+
+    /**
+     * Despliega en paralelo todos los repositorios registrados, los
+     * dispatchers de entidades y la bitácora de auditoría.
+     */
+    @SuppressWarnings("rawtypes")
+    private Future<Void> deployRepositories(){
+        List<Future> deployments = new ArrayList<>();
+        if(auditLog != null){
+            deployments.add(deployAuditLog());
+        }
+        if(!EntityRegistry.entities().isEmpty()){
+            deployments.add(deployDispatchers());
+        }
+        for(DataRepository repo : repositories){
+            deployments.add(deploy(repo));
+        }
+        repositories.clear();
+        return CompositeFuture.all(deployments).mapEmpty();
+    }
+
+    private Future<String> deploy(DataRepository repo){
+        Promise<String> promise = Promise.promise();
+        AbstractVerticle v = (AbstractVerticle) repo;
+        vertx.deployVerticle(v,hndlr->{
             if(hndlr.succeeded()){
-                System.out.println("Web Server deployed");
+                System.out.println("Repository deployed: " + v.getClass().getSimpleName());
+                promise.complete(hndlr.result());
             }else{
-                System.out.println("Web Server error!");
+                System.out.println("Repository error! " + v.getClass().getSimpleName());
+                promise.fail(hndlr.cause());
             }
         });
+        return promise.future();
     }
-    
-    public void deployRepositoy(DataRepository repo){
-        AbstractVerticle v = (AbstractVerticle) repo;
-        vertx.deployVerticle(v,hndlr->{
+
+    private Future<String> deployAuditLog(){
+        Promise<String> promise = Promise.promise();
+        vertx.deployVerticle(auditLog, new DeploymentOptions().setWorker(true), hndlr->{
+            if(hndlr.succeeded()){
+                System.out.println("Audit log deployed");
+                promise.complete(hndlr.result());
+            }else{
+                System.out.println("Audit log error!");
+                promise.fail(hndlr.cause());
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * Despliega una instancia de EntityDispatcherVerticle por shard.
+     */
+    @SuppressWarnings("rawtypes")
+    private Future<Void> deployDispatchers(){
+        EntityRegistry.setShards(dispatcherInstances);
+        List<Future> deployments = new ArrayList<>();
+        for(int shard = 0; shard < dispatcherInstances; shard++){
+            Promise<String> promise = Promise.promise();
+            vertx.deployVerticle(new EntityDispatcherVerticle(shard), hndlr->{
+                if(hndlr.succeeded()){
+                    promise.complete(hndlr.result());
+                }else{
+                    System.out.println("Entity dispatcher error!");
+                    promise.fail(hndlr.cause());
+                }
+            });
+            deployments.add(promise.future());
+        }
+        return CompositeFuture.all(deployments).map(all->{
+            System.out.println("Entity dispatchers deployed: " + EntityRegistry.entities().size() + " entities");
+            return null;
+        });
+    }
+
+    private Future<String> deployWebServer(){
+        Promise<String> promise = Promise.promise();
+        vertx.deployVerticle(new WebServerVerticle(requireStaticContent,requireRest),hndlr->{
             if(hndlr.succeeded()){
                 System.out.println("Web Server deployed");
+                promise.complete(hndlr.result());
             }else{
                 System.out.println("Web Server error!");
+                promise.fail(hndlr.cause());
             }
         });
+        return promise.future();
     }
-    
+
     /**
      * Método de apoyo para configurar cliente de datos.
+     *
+     * Abre minPoolSize conexiones a la vez y las regresa al pool una vez que
+     * todas están abiertas, de modo que las primeras peticiones no pagan el
+     * costo de conexión.
      */
+    @SuppressWarnings("rawtypes")
     private Future<Void> initDBClient(){
-        Promise<Void> promise = Promise.promise();
-        
         config = new JsonObject()
             .put("url", "jdbc:mysql://" + host+"/" + db + "?useSSL=false&useTimezone=true&serverTimezone=America/Mexico_City&user=" + user + "&password=" + password)
             .put("driver_class", driverClass)
-            .put("max_pool_size", 30);
-        
+            .put("max_pool_size", MAX_POOL_SIZE)
+            .put("min_pool_size", minPoolSize)
+            .put("initial_pool_size", minPoolSize);
+
         client = JDBCClient.createNonShared(vertx, config);
-        
-        client.getConnection(connectionHndlr->{
-            if(connectionHndlr.failed()){
-                promise.fail(connectionHndlr.cause().toString());
-            }else{
-                connectionHndlr.result().close();
-                promise.complete();
+
+        List<Future> connections = new ArrayList<>();
+        for(int i = 0; i < Math.max(1, minPoolSize); i++){
+            Promise<SQLConnection> promise = Promise.promise();
+            client.getConnection(connectionHndlr->{
+                if(connectionHndlr.failed()){
+                    promise.fail(connectionHndlr.cause());
+                }else{
+                    promise.complete(connectionHndlr.result());
+                }
+            });
+            connections.add(promise.future());
+        }
+
+        return CompositeFuture.join(connections).map(all->{
+            for(int i = 0; i < all.size(); i++){
+                ((SQLConnection) all.resultAt(i)).close();
             }
+            return (Void) null;
+        }).otherwise(error->{
+            for(Future connection : connections){
+                if(connection.succeeded()){
+                    ((SQLConnection) connection.result()).close();
+                }
+            }
+            throw new RuntimeException("initDB error! " + error.getMessage(), error);
         });
-        
-        return promise.future();
-    }    
+    }
 }
@@ -0,0 +1,113 @@
+package com.conciencia.vertx.verticles.audit;
+
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cola de registros de auditoría de escrituras (add, update, delete).
+ *
+ * Los repositorios encolan un registro por escritura sin bloquear el event
+ * loop; AuditLogVerticle los vacía en lotes a un archivo. La cola está
+ * acotada: si se llena, el registro se descarta y se cuenta en dropped().
+ *
+ * Mientras no se despliegue AuditLogVerticle, record() no hace nada.
+ *
+ * @author Ernesto Cantu
+ */
+public class AuditLog {
+
+    /* Registros pendientes de escribir */
+    private static final ConcurrentLinkedQueue<Record> QUEUE = new ConcurrentLinkedQueue<>();
+
+    /* Número de registros en la cola (ConcurrentLinkedQueue.size() es O(n)) */
+    private static final AtomicInteger SIZE = new AtomicInteger();
+
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private static volatile boolean enabled = false;
+
+    private static volatile int capacity = 65536;
+
+    private AuditLog(){
+    }
+
+    /**
+     * Encola el registro de una escritura. El objeto no debe modificarse
+     * después de llamar este método, ya que se codifica en otro hilo.
+     *
+     * @param entity entidad afectada
+     * @param operation operación realizada
+     * @param data objeto escrito
+     */
+    public static void record(String entity, String operation, JsonObject data){
+        if(!enabled)
+            return;
+        if(SIZE.incrementAndGet() > capacity){
+            SIZE.decrementAndGet();
+            DROPPED.incrementAndGet();
+            return;
+        }
+        QUEUE.offer(new Record(System.currentTimeMillis(), entity, operation, data));
+    }
+
+    /**
+     * @return registros descartados porque la cola estaba llena
+     */
+    public static long dropped(){
+        return DROPPED.get();
+    }
+
+    /**
+     * @return registros pendientes de escribir
+     */
+    public static int pending(){
+        return SIZE.get();
+    }
+
+    static void addDropped(int records){
+        DROPPED.addAndGet(records);
+    }
+
+    static void enable(int queueCapacity){
+        capacity = queueCapacity;
+        enabled = true;
+    }
+
+    static void disable(){
+        enabled = false;
+    }
+
+    static Record poll(){
+        Record record = QUEUE.poll();
+        if(record != null)
+            SIZE.decrementAndGet();
+        return record;
+    }
+
+    /**
+     * Registro de una escritura.
+     */
+    static class Record {
+        final long timestamp;
+        final String entity;
+        final String operation;
+        final JsonObject data;
+
+        Record(long timestamp, String entity, String operation, JsonObject data){
+            this.timestamp = timestamp;
+            this.entity = entity;
+            this.operation = operation;
+            this.data = data;
+        }
+
+        JsonObject toJson(){
+            return new JsonObject()
+                    .put("ts", timestamp)
+                    .put("entity", entity)
+                    .put("op", operation)
+                    .put("data", data);
+        }
+    }
+}
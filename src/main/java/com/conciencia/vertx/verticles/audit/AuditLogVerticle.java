@@ -0,0 +1,185 @@
+package com.conciencia.vertx.verticles.audit;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Verticle que escribe los registros de AuditLog en un archivo de solo
+ * agregado, una línea JSON por escritura.
+ *
+ * Debe desplegarse como worker verticle. Cada flushInterval ms vacía la cola,
+ * escribe todo el lote con una sola llamada y hace un solo fsync por lote
+ * (group commit). Cuando el archivo supera maxFileSize se renombra a
+ * archivo.<milisegundos> (archivo.<milisegundos>.<n> si ya existe) y se abre
+ * uno nuevo.
+ *
+ * Durabilidad: una escritura respondida al cliente queda en disco a más tardar
+ * flushInterval ms después (más el tiempo del propio lote). Ante una caída del
+ * proceso se pierden como máximo los registros de ese intervalo. Si la cola
+ * se llena (queueCapacity), los registros se descartan y se cuentan en
+ * AuditLog.dropped().
+ *
+ * Si escribir un lote falla, el lote se conserva y se reintenta en el
+ * siguiente intervalo antes de tomar registros nuevos; mientras tanto los
+ * registros se acumulan en la cola. Un lote que no se pudo escribir al
+ * replegar el verticle se suma a AuditLog.dropped().
+ *
+ * @author Ernesto Cantu
+ */
+public class AuditLogVerticle extends AbstractVerticle {
+
+    /* Registros máximos por lote */
+    private static final int MAX_BATCH = 8192;
+
+    private final Path file;
+
+    private final long flushInterval;
+
+    private final long maxFileSize;
+
+    private final int queueCapacity;
+
+    private FileChannel channel;
+
+    private long timerId;
+
+    /* Lote que no se pudo escribir y se reintenta en el siguiente intervalo */
+    private ByteBuffer pending;
+
+    /* Registros del lote pendiente */
+    private int pendingRecords;
+
+    /**
+     * @param file archivo de auditoría
+     * @param flushInterval ms entre cada escritura de lote
+     * @param maxFileSize tamaño en bytes a partir del cual se rota el archivo
+     * @param queueCapacity registros máximos en espera de escribirse
+     */
+    public AuditLogVerticle(String file, long flushInterval, long maxFileSize, int queueCapacity){
+        this.file = Paths.get(file);
+        this.flushInterval = flushInterval;
+        this.maxFileSize = maxFileSize;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Método ejecutado al arranque del verticle. Abre el archivo y programa
+     * la escritura periódica de lotes.
+     *
+     * @param promise
+     * @throws Exception
+     */
+    @Override
+    public void start(Promise<Void> promise) throws Exception {
+        if(file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        channel = open();
+        AuditLog.enable(queueCapacity);
+        timerId = vertx.setPeriodic(flushInterval, id->{
+            try{
+                flush();
+            }catch(IOException e){
+                System.out.println("Audit log error! " + pendingRecords
+                        + " records pending, retrying. " + e.getMessage());
+            }
+        });
+        promise.complete();
+    }
+
+    /**
+     * Método llamado cuando se repliega el verticle. Escribe los registros
+     * pendientes y cierra el archivo.
+     *
+     * @throws Exception
+     */
+    @Override
+    public void stop() throws Exception {
+        AuditLog.disable();
+        vertx.cancelTimer(timerId);
+        try{
+            flush();
+        }catch(IOException e){
+            // los registros que no se escribieron salen de la cola para no escribirse después como descartados
+            int lost = pendingRecords;
+            while(AuditLog.poll() != null)
+                lost++;
+            pending = null;
+            pendingRecords = 0;
+            AuditLog.addDropped(lost);
+            System.out.println("Audit log error! " + lost + " records dropped. " + e.getMessage());
+        }finally{
+            channel.close();
+        }
+    }
+
+    /**
+     * Escribe los registros encolados en lotes de hasta MAX_BATCH, con un
+     * fsync por lote. Primero termina el lote pendiente, si lo hay.
+     */
+    private void flush() throws IOException {
+        if(!channel.isOpen())
+            channel = open();
+        if(pending != null)
+            commit();
+        while(true){
+            Buffer batch = Buffer.buffer();
+            AuditLog.Record record;
+            int count = 0;
+            while(count < MAX_BATCH && (record = AuditLog.poll()) != null){
+                batch.appendString(record.toJson().encode()).appendByte((byte) '\n');
+                count++;
+            }
+            if(count == 0)
+                return;
+            pending = batch.getByteBuf().nioBuffer();
+            pendingRecords = count;
+            commit();
+        }
+    }
+
+    /**
+     * Escribe y sincroniza el lote pendiente. Si falla, el lote conserva su
+     * posición para no repetir lo que ya se escribió.
+     */
+    private void commit() throws IOException {
+        while(pending.hasRemaining()){
+            channel.write(pending);
+        }
+        channel.force(false);
+        pending = null;
+        pendingRecords = 0;
+        if(channel.size() >= maxFileSize)
+            rotate();
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        // ATOMIC_MOVE reemplaza un destino existente: dos rotaciones en el mismo ms no deben encimarse
+        String name = file.getFileName() + "." + now();
+        Path rotated = file.resolveSibling(name);
+        for(int n = 1; Files.exists(rotated); n++)
+            rotated = file.resolveSibling(name + "." + n);
+        Files.move(file, rotated, StandardCopyOption.ATOMIC_MOVE);
+        channel = open();
+    }
+
+    /* Milisegundos del nombre del archivo rotado; las pruebas lo fijan para forzar colisiones */
+    long now(){
+        return System.currentTimeMillis();
+    }
+
+    /* Abre el archivo para agregar; las pruebas lo sobreescriben para simular fallas */
+    FileChannel open() throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,310 @@
+package com.conciencia.vertx.verticles.registry;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Definición declarativa de una entidad: tabla, llave y columnas.
+ *
+ * A partir de la definición se generan los queries de get all, search, add,
+ * update y delete. Search, add y update solo usan las columnas presentes en
+ * el objeto recibido, de modo que un update parcial no sobreescribe las demás
+ * columnas y un add respeta los valores DEFAULT de la tabla; cada combinación
+ * de columnas genera su query una sola vez. Los nombres de columna nunca se
+ * toman del cliente, solo de la definición.
+ *
+ * El campo "type" de las peticiones indica la entidad, por lo que una
+ * definición con una columna "type" se rechaza al registrarse.
+ *
+ * Las instancias son inmutables y pueden compartirse entre verticles.
+ *
+ * @author Ernesto Cantu
+ */
+public class EntityDefinition {
+
+    /* Campo de las peticiones con el nombre de la entidad */
+    public static final String TYPE_FIELD = "type";
+
+    /* Nombre de la entidad (el "type" de las peticiones http) */
+    private final String name;
+
+    private final String table;
+
+    /* Columna llave */
+    private final String key;
+
+    /* Indica si la base de datos genera la llave (auto increment) */
+    private final boolean generatedKey;
+
+    /* Todas las columnas, incluida la llave */
+    private final List<String> columns;
+
+    /* Columnas que se pueden insertar en un add */
+    private final List<String> insertColumns;
+
+    /* Columnas que se pueden actualizar en un update (todas menos la llave) */
+    private final List<String> updateColumns;
+
+    /* Métodos permitidos; null si se permiten todos */
+    private final Set<String> methods;
+
+    private final String getAllQuery;
+    private final String deleteQuery;
+
+    /* Queries generados, por combinación de columnas presentes */
+    private final Map<Long, String> searchQueries = new ConcurrentHashMap<>();
+    private final Map<Long, String> addQueries = new ConcurrentHashMap<>();
+    private final Map<Long, String> updateQueries = new ConcurrentHashMap<>();
+
+    /**
+     * @throws IllegalArgumentException si alguna columna se llama "type"
+     */
+    public EntityDefinition(String name, String table, String key, boolean generatedKey,
+            List<String> columns, Set<String> methods){
+        if(TYPE_FIELD.equals(key) || columns.contains(TYPE_FIELD))
+            throw new IllegalArgumentException("Entity " + name + ": column \"" + TYPE_FIELD
+                    + "\" conflicts with the request field that selects the entity");
+        this.name = name;
+        this.table = table;
+        this.key = key;
+        this.generatedKey = generatedKey;
+        List<String> all = new ArrayList<>(columns);
+        if(!all.contains(key))
+            all.add(0, key);
+        this.columns = Collections.unmodifiableList(all);
+        List<String> update = new ArrayList<>(all);
+        update.remove(key);
+        this.updateColumns = Collections.unmodifiableList(update);
+        this.insertColumns = generatedKey ? updateColumns : this.columns;
+        this.methods = methods == null ? null : Collections.unmodifiableSet(new HashSet<>(methods));
+
+        this.getAllQuery = "SELECT " + join(this.columns, ", ", "") + " FROM " + quote(table);
+        this.deleteQuery = "DELETE FROM " + quote(table) + " WHERE " + quote(key) + " = ?";
+    }
+
+    /**
+     * Crea una definición a partir de su configuración JSON:
+     *
+     * {"name": "gasto", "table": "gastos", "key": "recid", "generatedKey": true,
+     *  "columns": ["descripcion", "monto"], "methods": ["get_all", "search"]}
+     *
+     * Solo "table" y "columns" son obligatorios; name toma el valor de table,
+     * key toma "recid", generatedKey toma true y methods permite todos.
+     *
+     * @param config configuración de la entidad
+     * @return definición de la entidad
+     * @throws IllegalArgumentException si falta table o columns, o si alguna
+     * columna se llama "type"
+     */
+    public static EntityDefinition fromJson(JsonObject config){
+        String table = config.getString("table");
+        JsonArray columns = config.getJsonArray("columns");
+        if(table == null || columns == null)
+            throw new IllegalArgumentException("Entity definition requires table and columns: " + config.encode());
+        List<String> columnNames = new ArrayList<>();
+        columns.forEach(column -> columnNames.add(String.valueOf(column)));
+        Set<String> methods = null;
+        JsonArray methodsConfig = config.getJsonArray("methods");
+        if(methodsConfig != null){
+            methods = new HashSet<>();
+            for(Object method : methodsConfig)
+                methods.add(String.valueOf(method));
+        }
+        return new EntityDefinition(config.getString("name", table), table,
+                config.getString("key", "recid"), config.getBoolean("generatedKey", true),
+                columnNames, methods);
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="QUERIES Y PARÁMETROS">
+
+    /**
+     * Construye el query de búsqueda con un filtro de igualdad por cada
+     * columna presente en el objeto de búsqueda.
+     *
+     * @param search objeto de búsqueda
+     * @return query de búsqueda
+     */
+    public String searchQuery(JsonObject search){
+        return cached(searchQueries, search, this::buildSearch);
+    }
+
+    /**
+     * @param search objeto de búsqueda
+     * @return parámetros del query de searchQuery(search), en el mismo orden
+     */
+    public JsonArray searchParams(JsonObject search){
+        return bind(search, present(search, columns), null);
+    }
+
+    /**
+     * Construye el insert con las columnas presentes en el objeto; las demás
+     * toman su valor DEFAULT.
+     *
+     * @param entity objeto a insertar
+     * @return query de inserción
+     */
+    public String addQuery(JsonObject entity){
+        return cached(addQueries, entity, this::buildAdd);
+    }
+
+    /**
+     * @param entity objeto a insertar
+     * @return parámetros de addQuery(entity), en el mismo orden
+     */
+    public JsonArray addParams(JsonObject entity){
+        return bind(entity, present(entity, insertColumns), null);
+    }
+
+    /**
+     * Construye el update con las columnas presentes en el objeto; las demás
+     * conservan su valor.
+     *
+     * @param entity objeto a actualizar
+     * @return query de actualización, o null si el objeto no trae columnas
+     * que actualizar
+     */
+    public String updateQuery(JsonObject entity){
+        return cached(updateQueries, entity, this::buildUpdate);
+    }
+
+    /**
+     * @param entity objeto a actualizar
+     * @return parámetros de updateQuery(entity), en el mismo orden
+     */
+    public JsonArray updateParams(JsonObject entity){
+        return bind(entity, present(entity, updateColumns), key);
+    }
+
+    /**
+     * @param entity objeto a eliminar
+     * @return parámetros de deleteQuery
+     */
+    public JsonArray deleteParams(JsonObject entity){
+        return new JsonArray().add(entity.getValue(key));
+    }
+
+    /* Regresa el query de la combinación de columnas presentes, generándolo una sola vez */
+    private String cached(Map<Long, String> cache, JsonObject entity, Function<JsonObject, String> builder){
+        if(columns.size() > Long.SIZE)
+            return builder.apply(entity);
+        long mask = 0;
+        for(int i = 0; i < columns.size(); i++){
+            if(isPresent(entity, columns.get(i)))
+                mask |= 1L << i;
+        }
+        return cache.computeIfAbsent(mask, m -> builder.apply(entity));
+    }
+
+    private String buildSearch(JsonObject search){
+        List<String> present = present(search, columns);
+        if(present.isEmpty())
+            return getAllQuery;
+        return getAllQuery + " WHERE " + join(present, " AND ", " = ?");
+    }
+
+    private String buildAdd(JsonObject entity){
+        List<String> present = present(entity, insertColumns);
+        return "INSERT INTO " + quote(table) + " (" + join(present, ", ", "")
+                + ") VALUES (" + placeholders(present.size()) + ")";
+    }
+
+    private String buildUpdate(JsonObject entity){
+        List<String> present = present(entity, updateColumns);
+        if(present.isEmpty())
+            return null;
+        return "UPDATE " + quote(table) + " SET " + join(present, ", ", " = ?")
+                + " WHERE " + quote(key) + " = ?";
+    }
+
+    private static boolean isPresent(JsonObject entity, String column){
+        return entity.containsKey(column);
+    }
+
+    private static List<String> present(JsonObject entity, List<String> candidates){
+        List<String> present = new ArrayList<>(candidates.size());
+        for(String column : candidates){
+            if(isPresent(entity, column))
+                present.add(column);
+        }
+        return present;
+    }
+
+    private static JsonArray bind(JsonObject entity, List<String> columns, String last){
+        JsonArray params = new JsonArray(new ArrayList<>(columns.size() + 1));
+        for(String column : columns)
+            params.add(entity.getValue(column));
+        if(last != null)
+            params.add(entity.getValue(last));
+        return params;
+    }
+
+    private static String quote(String identifier){
+        return "`" + identifier.replace("`", "``") + "`";
+    }
+
+    private static String join(List<String> columns, String separator, String suffix){
+        StringBuilder joined = new StringBuilder();
+        for(String column : columns){
+            if(joined.length() > 0)
+                joined.append(separator);
+            joined.append(quote(column)).append(suffix);
+        }
+        return joined.toString();
+    }
+
+    private static String placeholders(int count){
+        StringBuilder placeholders = new StringBuilder();
+        for(int i = 0; i < count; i++){
+            if(i > 0)
+                placeholders.append(", ");
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+
+    // </editor-fold>
+
+    /**
+     * @param method método a ejecutar (get_all, search, add, update, delete)
+     * @return true si el método está permitido para la entidad
+     */
+    public boolean methodAllowed(String method){
+        return methods == null || methods.contains(method);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isGeneratedKey() {
+        return generatedKey;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public String getGetAllQuery() {
+        return getAllQuery;
+    }
+
+    public String getDeleteQuery() {
+        return deleteQuery;
+    }
+}
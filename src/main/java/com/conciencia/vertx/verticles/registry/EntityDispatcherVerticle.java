@@ -0,0 +1,225 @@
+package com.conciencia.vertx.verticles.registry;
+
+import static com.conciencia.vertx.VertxWebConfig.client;
+import com.conciencia.vertx.verticles.audit.AuditLog;
+import com.conciencia.vertx.verticles.repository.JsonRowMapper;
+import com.conciencia.vertx.verticles.repository.SingleFlight;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.UpdateResult;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Verticle que atiende el CRUD de todas las entidades de EntityRegistry.
+ *
+ * Cada instancia atiende un shard: registra un consumidor por operación en
+ * registry.operación.shard, sin importar cuántas entidades existan. Todas las
+ * peticiones de una entidad llegan a la misma instancia (ver
+ * EntityRegistry.address), por lo que las lecturas idénticas se agrupan en un
+ * solo query y una escritura invalida las lecturas en curso antes de responder.
+ *
+ * Las respuestas son las mismas que las de DatabaseRepositoryVerticle.
+ *
+ * @author Ernesto Cantu
+ */
+public class EntityDispatcherVerticle extends AbstractVerticle {
+
+    /* Shard que atiende esta instancia */
+    private final int shard;
+
+    private final JsonRowMapper rowMapper = new JsonRowMapper();
+
+    /* Lecturas en curso por entidad */
+    private final Map<String, SingleFlight<Buffer>> flights = new HashMap<>();
+
+    public EntityDispatcherVerticle(int shard){
+        this.shard = shard;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="DEFINICION DE CRUD">
+
+    private void defineGetAll(){
+        vertx.eventBus().consumer(EntityRegistry.shardAddress("get", shard), hndlr->{
+            EntityDefinition definition = definition(hndlr, "get_all");
+            if(definition == null)
+                return;
+            flight(definition).execute("get_all", done->
+                query(definition.getGetAllQuery(), null, done), reply(hndlr));
+        });
+    }
+
+    private void defineSearch(){
+        vertx.eventBus().consumer(EntityRegistry.shardAddress("search", shard), hndlr->{
+            EntityDefinition definition = definition(hndlr, "search");
+            if(definition == null)
+                return;
+            JsonObject search = (JsonObject) hndlr.body();
+            String sql = definition.searchQuery(search);
+            JsonArray params = definition.searchParams(search);
+            flight(definition).execute("search:" + sql + ":" + params.encode(), done->
+                query(sql, params, done), reply(hndlr));
+        });
+    }
+
+    private void defineAdd(){
+        vertx.eventBus().consumer(EntityRegistry.shardAddress("add", shard), hndlr->{
+            EntityDefinition definition = definition(hndlr, "add");
+            if(definition == null)
+                return;
+            JsonObject addObject = (JsonObject) hndlr.body();
+            update(definition.addQuery(addObject), definition.addParams(addObject), insert->{
+                if(insert.failed()){
+                    hndlr.fail(0, insert.cause().toString());
+                    return;
+                }
+                if(definition.isGeneratedKey() && insert.result().getKeys().size() > 0)
+                    addObject.put(definition.getKey(), insert.result().getKeys().getValue(0));
+                written(definition);
+                hndlr.reply(addObject.put("added", Boolean.TRUE));
+                AuditLog.record(definition.getName(), "add", addObject);
+            });
+        });
+    }
+
+    private void defineUpdate(){
+        vertx.eventBus().consumer(EntityRegistry.shardAddress("edit", shard), hndlr->{
+            EntityDefinition definition = definition(hndlr, "update");
+            if(definition == null)
+                return;
+            JsonObject updateObject = (JsonObject) hndlr.body();
+            if(updateObject.getValue(definition.getKey()) == null){
+                hndlr.fail(0, "Error updating " + updateObject + ". Reason: Missing id");
+                return;
+            }
+            String updateQuery = definition.updateQuery(updateObject);
+            if(updateQuery == null){
+                hndlr.fail(0, "Error updating " + updateObject + ". Reason: No columns to update");
+                return;
+            }
+            update(updateQuery, definition.updateParams(updateObject), update->{
+                if(update.failed()){
+                    hndlr.fail(0, update.cause().toString());
+                    return;
+                }
+                written(definition);
+                hndlr.reply(updateObject.put("updated", Boolean.TRUE));
+                AuditLog.record(definition.getName(), "update", updateObject);
+            });
+        });
+    }
+
+    private void defineDelete(){
+        vertx.eventBus().consumer(EntityRegistry.shardAddress("delete", shard), hndlr->{
+            EntityDefinition definition = definition(hndlr, "delete");
+            if(definition == null)
+                return;
+            JsonObject deleteObject = (JsonObject) hndlr.body();
+            if(deleteObject.getValue(definition.getKey()) == null){
+                hndlr.fail(0, "Error deleting " + deleteObject + ". Reason: Missing id");
+                return;
+            }
+            update(definition.getDeleteQuery(), definition.deleteParams(deleteObject), delete->{
+                if(delete.failed()){
+                    hndlr.fail(0, delete.cause().toString());
+                    return;
+                }
+                written(definition);
+                hndlr.reply(deleteObject.put("deleted", Boolean.TRUE));
+                AuditLog.record(definition.getName(), "delete", deleteObject);
+            });
+        });
+    }
+
+    // </editor-fold>
+
+    /**
+     * Obtiene la definición de la entidad del mensaje. Si no existe o el
+     * método no está permitido, responde con error y regresa null.
+     */
+    private EntityDefinition definition(Message<Object> hndlr, String method){
+        String name = hndlr.headers().get(EntityRegistry.ENTITY_HEADER);
+        EntityDefinition definition = EntityRegistry.get(name);
+        if(definition == null){
+            hndlr.fail(0, "Entity not registered: " + name);
+            return null;
+        }
+        if(!definition.methodAllowed(method)){
+            hndlr.fail(0, method + " not implemented for " + name);
+            return null;
+        }
+        return definition;
+    }
+
+    private SingleFlight<Buffer> flight(EntityDefinition definition){
+        return flights.computeIfAbsent(definition.getName(), name -> new SingleFlight<>(vertx, name));
+    }
+
+    private Handler<AsyncResult<Buffer>> reply(Message<Object> hndlr){
+        return queryHndlr->{
+            if(queryHndlr.succeeded()){
+                hndlr.reply(queryHndlr.result());
+            }else{
+                hndlr.fail(0, queryHndlr.cause().toString());
+            }
+        };
+    }
+
+    private void query(String sql, JsonArray params, Handler<AsyncResult<Buffer>> handler){
+        client.getConnection(connectionHandler->{
+            if(connectionHandler.failed()){
+                handler.handle(Future.failedFuture(connectionHandler.cause()));
+                return;
+            }
+            rowMapper.query(connectionHandler.result(), sql, params, handler);
+        });
+    }
+
+    private void update(String sql, JsonArray params, Handler<AsyncResult<UpdateResult>> handler){
+        client.getConnection(connectionHandler->{
+            if(connectionHandler.failed()){
+                handler.handle(Future.failedFuture(connectionHandler.cause()));
+                return;
+            }
+            connectionHandler.result().updateWithParams(sql, params, result->{
+                connectionHandler.result().close();
+                handler.handle(result);
+            });
+        });
+    }
+
+    /**
+     * Libera las lecturas en curso de la entidad, para que las siguientes no
+     * se agrupen con lecturas previas a la escritura. Se llama antes de
+     * responder la escritura.
+     */
+    private void written(EntityDefinition definition){
+        SingleFlight<Buffer> flight = flights.get(definition.getName());
+        if(flight != null)
+            flight.forget();
+    }
+
+    /**
+     * Método ejecutado al arranque del verticle. Declara los consumidores de
+     * cada operación para el shard de la instancia.
+     *
+     * @param promise
+     * @throws Exception
+     */
+    @Override
+    public void start(Promise<Void> promise) throws Exception {
+        defineGetAll();
+        defineSearch();
+        defineAdd();
+        defineUpdate();
+        defineDelete();
+        promise.complete();
+    }
+}
@@ -0,0 +1,214 @@
+package com.conciencia.vertx.verticles.registry;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.SQLClient;
+import io.vertx.ext.sql.SQLConnection;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de entidades atendidas por EntityDispatcherVerticle.
+ *
+ * Las entidades se registran desde configuración (EntityDefinition.fromJson)
+ * o leyendo las tablas con DatabaseMetaData durante el arranque. Se atienden
+ * desde un número fijo de instancias de EntityDispatcherVerticle (shards);
+ * cada instancia escucha registry.operación.shard y la entidad se indica en el
+ * header "entity". Todas las operaciones de una entidad van siempre al mismo
+ * shard, de modo que sus lecturas idénticas se agrupan en una sola instancia y
+ * sus escrituras invalidan esas lecturas antes de responder. Así el número de
+ * consumidores no crece con el número de tablas.
+ *
+ * @author Ernesto Cantu
+ */
+public class EntityRegistry {
+
+    /* Header del mensaje que indica la entidad */
+    public static final String ENTITY_HEADER = "entity";
+
+    private static final String ADDRESS_PREFIX = "registry.";
+
+    private static final Map<String, EntityDefinition> ENTITIES = new ConcurrentHashMap<>();
+
+    /* Número de instancias de EntityDispatcherVerticle */
+    private static volatile int shards = 1;
+
+    private EntityRegistry(){
+    }
+
+    /**
+     * Dirección del event bus que atiende una operación de una entidad.
+     *
+     * @param operation prefijo de la operación (get, search, add, edit, delete)
+     * @param entity nombre de la entidad
+     * @return dirección del event bus
+     */
+    public static String address(String operation, String entity){
+        return shardAddress(operation, Math.floorMod(entity.hashCode(), shards));
+    }
+
+    /**
+     * Dirección del event bus que atiende un shard para una operación.
+     *
+     * @param operation prefijo de la operación (get, search, add, edit, delete)
+     * @param shard número de instancia del dispatcher
+     * @return dirección del event bus
+     */
+    public static String shardAddress(String operation, int shard){
+        return ADDRESS_PREFIX + operation + "." + shard;
+    }
+
+    /**
+     * Establece el número de instancias de EntityDispatcherVerticle. Debe
+     * llamarse antes de desplegarlas.
+     *
+     * @param count número de shards
+     */
+    public static void setShards(int count){
+        shards = Math.max(1, count);
+    }
+
+    public static void register(EntityDefinition definition){
+        ENTITIES.put(definition.getName(), definition);
+    }
+
+    /**
+     * Registra las entidades de un array de configuraciones.
+     *
+     * @param definitions configuraciones con el formato de EntityDefinition.fromJson
+     */
+    public static void register(JsonArray definitions){
+        for(int i = 0; i < definitions.size(); i++){
+            register(EntityDefinition.fromJson(definitions.getJsonObject(i)));
+        }
+    }
+
+    public static EntityDefinition get(String name){
+        return name == null ? null : ENTITIES.get(name);
+    }
+
+    public static boolean contains(String name){
+        return name != null && ENTITIES.containsKey(name);
+    }
+
+    public static Collection<EntityDefinition> entities(){
+        return ENTITIES.values();
+    }
+
+    /**
+     * Registra las tablas indicadas (o todas las de la base de datos si la
+     * lista está vacía) leyendo sus columnas y llave primaria con
+     * DatabaseMetaData. Las tablas sin llave primaria de una sola columna se
+     * registran solo para get all y search. Una tabla con una columna "type"
+     * no puede registrarse: si se indicó en la lista el future falla; si se
+     * leen todas las tablas, se omite con un aviso.
+     *
+     * @param vertx instancia de vertx
+     * @param client cliente de base de datos
+     * @param tables tablas a registrar; vacía para todas
+     * @return future que se completa al registrar todas las tablas
+     */
+    public static Future<Void> loadMetadata(Vertx vertx, SQLClient client, List<String> tables){
+        Promise<Void> promise = Promise.promise();
+        client.getConnection(connectionHndlr->{
+            if(connectionHndlr.failed()){
+                promise.fail(connectionHndlr.cause());
+                return;
+            }
+            SQLConnection connection = connectionHndlr.result();
+            vertx.<List<EntityDefinition>>executeBlocking(blocking->{
+                try{
+                    blocking.complete(readMetadata(connection.unwrap(), tables));
+                }catch(SQLException e){
+                    blocking.fail(e);
+                }
+            }, result->{
+                connection.close();
+                if(result.failed()){
+                    promise.fail(result.cause());
+                    return;
+                }
+                for(EntityDefinition definition : result.result()){
+                    register(definition);
+                }
+                promise.complete();
+            });
+        });
+        return promise.future();
+    }
+
+    private static List<EntityDefinition> readMetadata(Connection connection, List<String> tables) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        String catalog = connection.getCatalog();
+        String escape = metaData.getSearchStringEscape();
+        List<String> names = new ArrayList<>(tables);
+        if(names.isEmpty()){
+            try(ResultSet rs = metaData.getTables(catalog, null, "%", new String[]{"TABLE"})){
+                while(rs.next())
+                    names.add(rs.getString("TABLE_NAME"));
+            }
+        }
+        List<EntityDefinition> definitions = new ArrayList<>();
+        for(String table : names){
+            List<String> keys = new ArrayList<>();
+            try(ResultSet rs = metaData.getPrimaryKeys(catalog, null, table)){
+                while(rs.next())
+                    keys.add(rs.getString("COLUMN_NAME"));
+            }
+            List<String> columns = new ArrayList<>();
+            boolean generatedKey = false;
+            // getColumns recibe un patrón LIKE: se escapan _ y % y se descartan otras tablas
+            try(ResultSet rs = metaData.getColumns(catalog, null, escapePattern(table, escape), "%")){
+                while(rs.next()){
+                    if(!table.equalsIgnoreCase(rs.getString("TABLE_NAME")))
+                        continue;
+                    String column = rs.getString("COLUMN_NAME");
+                    columns.add(column);
+                    if(keys.size() == 1 && column.equals(keys.get(0)))
+                        generatedKey = "YES".equalsIgnoreCase(rs.getString("IS_AUTOINCREMENT"));
+                }
+            }
+            if(columns.isEmpty())
+                throw new SQLException("Table not found: " + table);
+            if(columns.contains(EntityDefinition.TYPE_FIELD)){
+                if(!tables.isEmpty())
+                    throw new SQLException("Table " + table + " has a \"" + EntityDefinition.TYPE_FIELD
+                            + "\" column, which conflicts with the request field that selects the entity");
+                System.out.println("Entity skipped: table " + table + " has a \""
+                        + EntityDefinition.TYPE_FIELD + "\" column");
+                continue;
+            }
+            JsonObject config = new JsonObject()
+                    .put("table", table)
+                    .put("columns", new JsonArray(columns))
+                    .put("generatedKey", generatedKey);
+            if(keys.size() == 1){
+                config.put("key", keys.get(0));
+            }else{
+                config.put("key", columns.get(0))
+                      .put("methods", new JsonArray().add("get_all").add("search"));
+            }
+            definitions.add(EntityDefinition.fromJson(config));
+        }
+        return definitions;
+    }
+
+    /* Escapa los comodines de un patrón de DatabaseMetaData para buscar el nombre literal */
+    private static String escapePattern(String name, String escape){
+        if(escape == null || escape.isEmpty())
+            return name;
+        return name.replace(escape, escape + escape)
+                .replace("_", escape + "_")
+                .replace("%", escape + "%");
+    }
+}
@@ -64,8 +64,8 @@ public interface DataRepository {
      * Método que crea una dirección en el event bus que permite procesar las 
      * peticiones "Get All" de la entidad que procesa la operación.
      * 
-     * Regresa al solicitante un array de objetos JSON con el resultado del query
-     * definido en "getAllQuery".
+     * Regresa al solicitante un Buffer con el array de objetos JSON resultado
+     * del query definido en "getAllQuery".
      */
     public void defineGetAll();
     
@@ -73,8 +73,8 @@ public interface DataRepository {
      * Método que crea una dirección en el event bus que permite procesar las 
      * peticiones "Search" de la entidad que procesa la operación.
      * 
-     * Regresa al solicitante un array de objetos JSON con el resultado del query
-     * definido en "searchQuery".
+     * Regresa al solicitante un Buffer con el array de objetos JSON resultado
+     * del query definido en "searchQuery".
      */
     public void defineSearch();
     
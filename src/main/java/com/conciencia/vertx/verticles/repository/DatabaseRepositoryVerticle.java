@@ -2,13 +2,14 @@ package com.conciencia.vertx.verticles.repository;
 
 
 import static com.conciencia.vertx.VertxWebConfig.client;
+import com.conciencia.vertx.verticles.audit.AuditLog;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.sql.ResultSet;
 import io.vertx.ext.sql.SQLConnection;
-import java.util.List;
 
 /**
  * Clase abstracta que define operaciones genéricas de todas las entidades
@@ -57,6 +58,12 @@ public abstract class DatabaseRepositoryVerticle extends AbstractVerticle implem
     
     protected final String deleteMethod = "delete";
     
+    /* Mapeo de renglones a JSON para get all y search */
+    protected final JsonRowMapper rowMapper = new JsonRowMapper();
+    
+    /* Agrupa get all y search idénticos que están en curso */
+    protected SingleFlight<Buffer> readFlight;
+    
     /**
      * Método que incializa las propiedades especificas de cada Repositorio.
      */
@@ -123,28 +130,28 @@ public abstract class DatabaseRepositoryVerticle extends AbstractVerticle implem
      * Método que crea una dirección en el event bus que permite procesar las 
      * peticiones "Get All" de la entidad que procesa la operación.
      * 
-     * Regresa al solicitante un array de objetos JSON con el resultado del query
-     * definido en "getAllQuery".
+     * Regresa al solicitante un Buffer con el array de objetos JSON resultado
+     * del query definido en "getAllQuery". Las peticiones que llegan mientras
+     * el query está en curso reciben el mismo resultado.
      */
     @Override
     public void defineGetAll(){
         vertx.eventBus().consumer("get_" + entityName,hndlr->{
             if(methodAllowed(getAllMethod)){
-                client.getConnection(connectionHandler->{
-                    if(connectionHandler.failed()){
-                        hndlr.fail(0, connectionHandler.cause().toString());
-                    }
-                    SQLConnection connection = connectionHandler.result();
-                    connection.query(getAllQuery, queryHndlr->{
-                        connection.close();
-                        if(queryHndlr.succeeded()){
-                            ResultSet rs = queryHndlr.result();
-                            List<JsonObject> results = rs.getRows();
-                            hndlr.reply(new JsonArray(results));
-                        }else{
-                             hndlr.fail(0, queryHndlr.cause().toString());
+                readFlight.execute(getAllMethod, done->{
+                    client.getConnection(connectionHandler->{
+                        if(connectionHandler.failed()){
+                            done.handle(Future.failedFuture(connectionHandler.cause()));
+                            return;
                         }
+                        rowMapper.query(connectionHandler.result(), getAllQuery, null, done);
                     });
+                }, queryHndlr->{
+                    if(queryHndlr.succeeded()){
+                        hndlr.reply(queryHndlr.result());
+                    }else{
+                         hndlr.fail(0, queryHndlr.cause().toString());
+                    }
                 });
             }else{
                 hndlr.fail(0, "Get all no implementado para: " + entityName);
@@ -156,8 +163,9 @@ public abstract class DatabaseRepositoryVerticle extends AbstractVerticle implem
      * Método que crea una dirección en el event bus que permite procesar las 
      * peticiones "Search" de la entidad que procesa la operación.
      * 
-     * Regresa al solicitante un array de objetos JSON con el resultado del query
-     * definido en "searchQuery".
+     * Regresa al solicitante un Buffer con el array de objetos JSON resultado
+     * del query definido en "searchQuery". Las búsquedas con el mismo query y
+     * parámetros que llegan mientras está en curso reciben el mismo resultado.
      */
     @Override
     public void defineSearch(){
@@ -165,23 +173,24 @@ public abstract class DatabaseRepositoryVerticle extends AbstractVerticle implem
             if(methodAllowed(searchMethod)){
                 JsonObject entity = (JsonObject)hndlr.body();
                 this.entity = entity;
-                client.getConnection(connectionHandler->{
-                    if(connectionHandler.failed()){
-                        hndlr.fail(0, connectionHandler.cause().toString());
-                    }
-                    SQLConnection connection = connectionHandler.result();
-                    StringBuilder sQuery = new StringBuilder(String.valueOf(searchQuery));
-                    JsonArray params = configSearch(entity, sQuery);
-                    connection.queryWithParams(sQuery.toString(), params, queryHndlr->{
-                        connection.close();
-                        if(queryHndlr.succeeded()){
-                            ResultSet rs = queryHndlr.result();
-                            List<JsonObject> results = rs.getRows();
-                            hndlr.reply(new JsonArray(results));
-                        }else{
-                             hndlr.fail(0, queryHndlr.cause().toString());
+                StringBuilder sQuery = new StringBuilder(String.valueOf(searchQuery));
+                JsonArray params = configSearch(entity, sQuery);
+                String sql = sQuery.toString();
+                String key = searchMethod + ":" + sql + ":" + (params == null ? "" : params.encode());
+                readFlight.execute(key, done->{
+                    client.getConnection(connectionHandler->{
+                        if(connectionHandler.failed()){
+                            done.handle(Future.failedFuture(connectionHandler.cause()));
+                            return;
                         }
+                        rowMapper.query(connectionHandler.result(), sql, params, done);
                     });
+                }, queryHndlr->{
+                    if(queryHndlr.succeeded()){
+                        hndlr.reply(queryHndlr.result());
+                    }else{
+                         hndlr.fail(0, queryHndlr.cause().toString());
+                    }
                 });
             }else{
                 hndlr.fail(0, "Search no implementado para: " + entityName);
@@ -213,11 +222,14 @@ public abstract class DatabaseRepositoryVerticle extends AbstractVerticle implem
                                 connection.close();
                                 if(insertHandler.failed()){
                                     hndlr.fail(0, insertHandler.cause().toString());
+                                    return;
                                 }
                                 int recid = insertHandler.result().getKeys().getInteger(0);
                                 addObject.put("recid", recid);
+                                readFlight.forget();
                                 informTransaction(addMethod);
                                 hndlr.reply(addObject.put("added", Boolean.TRUE));
+                                AuditLog.record(entityName, addMethod, addObject);
                             });
                         }
                     });
@@ -245,20 +257,27 @@ public abstract class DatabaseRepositoryVerticle extends AbstractVerticle implem
                 try{
                     JsonObject updateObject = (JsonObject)hndlr.body();
                     this.entity = updateObject;
-                    if(updateObject.getInteger("recid") == null)
+                    if(updateObject.getInteger("recid") == null){
                         hndlr.fail(0, "Error updating " + updateObject + ". Reason: Missing id");
+                        return;
+                    }
                     client.getConnection(connectionHandler->{
-                        if(connectionHandler.failed())
+                        if(connectionHandler.failed()){
                              hndlr.fail(0, connectionHandler.cause().getMessage());
+                             return;
+                        }
                         SQLConnection connection = connectionHandler.result();
                         JsonArray params = initParams(updateObject,"update");
                         connection.updateWithParams(updateQuery, params, update->{
                             connection.close();
                             if(update.failed()){
                                 hndlr.fail(0, update.cause().toString());
+                                return;
                             }
+                            readFlight.forget();
                             informTransaction(updateMethod);
                             hndlr.reply(updateObject.put("updated", Boolean.TRUE));
+                            AuditLog.record(entityName, updateMethod, updateObject);
                         });
                     });
                 }catch(Exception e){
@@ -285,24 +304,30 @@ public abstract class DatabaseRepositoryVerticle extends AbstractVerticle implem
                 try{
                     JsonObject deleteObject = (JsonObject) hndlr.body();
                     this.entity = deleteObject;
-                    if(deleteObject.getInteger("recid") == null)
+                    if(deleteObject.getInteger("recid") == null){
                         hndlr.fail(0, "Error deleting " + deleteObject + ". Reason: Missing id");
+                        return;
+                    }
                     //delete
                     client.getConnection(connectionHandler->{
-                        if(connectionHandler.failed())
+                        if(connectionHandler.failed()){
                              hndlr.fail(0, connectionHandler.cause().getMessage());
+                             return;
+                        }
                         SQLConnection connection = connectionHandler.result();
                         JsonArray params = initParams(deleteObject, "delete");
                         connection.updateWithParams(deleteQuery, params, deleteHandler->{
                             connection.close();
                             if(deleteHandler.failed()){
                                 hndlr.fail(0, deleteHandler.cause().toString());
+                                return;
                             }
+                            readFlight.forget();
                             informTransaction(deleteMethod);
                             hndlr.reply(deleteObject.put("deleted", Boolean.TRUE));
+                            AuditLog.record(entityName, deleteMethod, deleteObject);
                         });
                     });
-                    hndlr.reply(deleteObject.put("deleted", Boolean.TRUE)); 
                 }catch(Exception e){
                     hndlr.fail(0, "Error deleting " + entityName + ". Reason: " + e.getMessage());
                 }
@@ -344,6 +369,7 @@ public abstract class DatabaseRepositoryVerticle extends AbstractVerticle implem
     @Override
     public void start(Promise<Void> promise) throws Exception {    
         initInfo();
+        readFlight = new SingleFlight<>(vertx, entityName);
         defineCrud();
         promise.complete();
     }
@@ -0,0 +1,274 @@
+package com.conciencia.vertx.verticles.repository;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Motor de mapeo de renglones JDBC a JSON.
+ *
+ * En lugar de construir un JsonObject por renglón (ResultSet.getRows()) y
+ * volver a codificar la lista completa, toma los renglones como arreglos
+ * (ResultSet.getResults()) y los escribe directamente en un Buffer con el
+ * formato:
+ *
+ * [{"columna":valor,...},...]
+ *
+ * El query se ejecuta en una sola llamada al worker. Un SQLRowStream
+ * requiere una llamada por cada lote de 128 renglones y el driver de MySQL
+ * carga de cualquier forma el resultado completo en memoria.
+ *
+ * Los nombres de columna se codifican una sola vez por query y el tipo de
+ * cada columna se resuelve con el primer valor no nulo, de modo que las
+ * columnas numéricas se escriben sin pasar por String.
+ *
+ * Cada instancia debe usarse desde un solo verticle (event loop).
+ *
+ * @author Ernesto Cantu
+ */
+public class JsonRowMapper {
+
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] LONG_MIN = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MIN_SIZE_HINT = 256;
+
+    /* Tamaño máximo que se reserva de antemano; el Buffer crece si hace falta */
+    private static final int MAX_SIZE_HINT = 64 * 1024;
+
+    /* Queries distintos de los que se recuerda el tamaño */
+    private static final int MAX_SIZE_HINTS = 256;
+
+    /* Tipos de columna que se escriben de forma especializada */
+    private enum Kind { UNKNOWN, LONG, DOUBLE, DECIMAL, BOOLEAN, STRING, OTHER }
+
+    /* Tamaño inicial del buffer por query, tomado de la última respuesta */
+    private final Map<String, Integer> sizeHints = new HashMap<>();
+
+    /* Espacio de trabajo para escribir enteros sin crear Strings */
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Ejecuta un query y regresa el resultado como un array JSON codificado.
+     * La conexión se cierra al recibir el resultado.
+     *
+     * @param connection conexión a utilizar
+     * @param sql query a ejecutar
+     * @param params parámetros del query (puede ser null)
+     * @param handler recibe el Buffer con el array JSON
+     */
+    public void query(SQLConnection connection, String sql, JsonArray params, Handler<AsyncResult<Buffer>> handler){
+        Handler<AsyncResult<ResultSet>> onResult = queryHndlr->{
+            connection.close();
+            if(queryHndlr.failed()){
+                handler.handle(Future.failedFuture(queryHndlr.cause()));
+                return;
+            }
+            Buffer buffer;
+            try{
+                ResultSet rs = queryHndlr.result();
+                buffer = encode(rs.getColumnNames(), rs.getResults(), sizeHints.getOrDefault(sql, MIN_SIZE_HINT));
+            }catch(RuntimeException e){
+                handler.handle(Future.failedFuture(e));
+                return;
+            }
+            if(sizeHints.size() < MAX_SIZE_HINTS || sizeHints.containsKey(sql))
+                sizeHints.put(sql, Math.max(MIN_SIZE_HINT, Math.min(MAX_SIZE_HINT, buffer.length())));
+            handler.handle(Future.succeededFuture(buffer));
+        };
+        if(params == null){
+            connection.query(sql, onResult);
+        }else{
+            connection.queryWithParams(sql, params, onResult);
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="CODIFICACION JSON">
+
+    /**
+     * Codifica los renglones de un query.
+     *
+     * @param columns nombres de columna
+     * @param rows renglones
+     * @return Buffer con el array JSON
+     */
+    Buffer encode(List<String> columns, List<JsonArray> rows){
+        return encode(columns, rows, MIN_SIZE_HINT);
+    }
+
+    private Buffer encode(List<String> columns, List<JsonArray> rows, int size){
+        Buffer buffer = Buffer.buffer(size);
+        byte[][] keys = encodeKeys(columns);
+        Kind[] kinds = new Kind[columns.size()];
+        Arrays.fill(kinds, Kind.UNKNOWN);
+        buffer.appendByte((byte) '[');
+        for(int i = 0; i < rows.size(); i++){
+            if(i > 0)
+                buffer.appendByte((byte) ',');
+            writeRow(buffer, keys, kinds, rows.get(i));
+        }
+        return buffer.appendByte((byte) ']');
+    }
+
+    /* Codifica una vez por query el prefijo {"columna": / ,"columna": de cada columna */
+    private static byte[][] encodeKeys(List<String> columns){
+        byte[][] keys = new byte[columns.size()][];
+        for(int i = 0; i < keys.length; i++){
+            Buffer key = Buffer.buffer();
+            key.appendByte((byte) (i == 0 ? '{' : ','));
+            writeString(key, columns.get(i));
+            key.appendByte((byte) ':');
+            keys[i] = key.getBytes();
+        }
+        return keys;
+    }
+
+    private void writeRow(Buffer buffer, byte[][] keys, Kind[] kinds, JsonArray row){
+        if(keys.length == 0){
+            buffer.appendByte((byte) '{');
+        }
+        for(int i = 0; i < keys.length; i++){
+            buffer.appendBytes(keys[i]);
+            Object value = row.getValue(i);
+            if(value == null){
+                buffer.appendBytes(NULL);
+                continue;
+            }
+            if(kinds[i] == Kind.UNKNOWN)
+                kinds[i] = kindOf(value);
+            writeValue(buffer, kinds[i], value);
+        }
+        buffer.appendByte((byte) '}');
+    }
+
+    private static Kind kindOf(Object value){
+        if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+            return Kind.LONG;
+        if(value instanceof Double || value instanceof Float)
+            return Kind.DOUBLE;
+        if(value instanceof BigDecimal)
+            return Kind.DECIMAL;
+        if(value instanceof Boolean)
+            return Kind.BOOLEAN;
+        if(value instanceof String)
+            return Kind.STRING;
+        return Kind.OTHER;
+    }
+
+    private void writeValue(Buffer buffer, Kind kind, Object value){
+        switch(kind){
+            case LONG:
+                if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte){
+                    writeLong(buffer, ((Number) value).longValue());
+                    return;
+                }
+                break;
+            case DOUBLE:
+                if(value instanceof Double || value instanceof Float){
+                    double d = ((Number) value).doubleValue();
+                    if(Double.isNaN(d) || Double.isInfinite(d))
+                        buffer.appendBytes(NULL);
+                    else if(value instanceof Float)
+                        // Float.toString conserva la representación corta (0.1, no 0.10000000149011612)
+                        buffer.appendString(Float.toString((Float) value));
+                    else
+                        buffer.appendString(Double.toString(d));
+                    return;
+                }
+                break;
+            case DECIMAL:
+                if(value instanceof BigDecimal){
+                    buffer.appendString(((BigDecimal) value).toString());
+                    return;
+                }
+                break;
+            case BOOLEAN:
+                if(value instanceof Boolean){
+                    buffer.appendBytes((Boolean) value ? TRUE : FALSE);
+                    return;
+                }
+                break;
+            case STRING:
+                if(value instanceof String){
+                    writeString(buffer, (String) value);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        // el valor no coincide con el tipo resuelto para la columna
+        buffer.appendString(Json.encode(value));
+    }
+
+    /* Escribe los dígitos de un long directamente en el buffer */
+    private void writeLong(Buffer buffer, long value){
+        if(value == Long.MIN_VALUE){
+            buffer.appendBytes(LONG_MIN);
+            return;
+        }
+        if(value < 0){
+            buffer.appendByte((byte) '-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do{
+            digits[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }while(value != 0);
+        buffer.appendBytes(digits, pos, digits.length - pos);
+    }
+
+    /* Escribe un String JSON; si no requiere escapes se copia directo al buffer */
+    private static void writeString(Buffer buffer, String value){
+        buffer.appendByte((byte) '"');
+        if(needsEscape(value)){
+            StringBuilder escaped = new StringBuilder(value.length() + 16);
+            for(int i = 0; i < value.length(); i++){
+                char c = value.charAt(i);
+                switch(c){
+                    case '"': escaped.append("\\\""); break;
+                    case '\\': escaped.append("\\\\"); break;
+                    case '\n': escaped.append("\\n"); break;
+                    case '\r': escaped.append("\\r"); break;
+                    case '\t': escaped.append("\\t"); break;
+                    case '\b': escaped.append("\\b"); break;
+                    case '\f': escaped.append("\\f"); break;
+                    default:
+                        if(c < 0x20)
+                            escaped.append(String.format("\\u%04x", (int) c));
+                        else
+                            escaped.append(c);
+                }
+            }
+            buffer.appendString(escaped.toString());
+        }else{
+            buffer.appendString(value);
+        }
+        buffer.appendByte((byte) '"');
+    }
+
+    private static boolean needsEscape(String value){
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c < 0x20 || c == '"' || c == '\\')
+                return true;
+        }
+        return false;
+    }
+
+    // </editor-fold>
+}
@@ -0,0 +1,156 @@
+package com.conciencia.vertx.verticles.repository;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agrupa lecturas idénticas que están en curso al mismo tiempo.
+ *
+ * La primera petición con una llave dada ejecuta el query; las peticiones con
+ * la misma llave que lleguen antes de que termine esperan su resultado en
+ * lugar de ejecutar otro query. Al terminar, la llave se libera, por lo que
+ * no se guarda ningún resultado (no es un caché).
+ *
+ * Si la ejecución no termina en timeout ms (por defecto, el timeout de envío
+ * del event bus), la llave se libera y las peticiones en espera reciben un
+ * error, de modo que un query colgado no bloquea las lecturas siguientes.
+ *
+ * Cada instancia debe usarse desde un solo verticle (event loop). Las
+ * métricas se acumulan por nombre de entidad y pueden consultarse desde
+ * cualquier hilo con metrics().
+ *
+ * @author Ernesto Cantu
+ * @param <T> tipo del resultado compartido
+ */
+public class SingleFlight<T> {
+
+    /* Métricas por entidad, compartidas por todas las instancias */
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    /* Ejecuciones en curso por llave */
+    private final Map<String, Flight> inFlight = new HashMap<>();
+
+    private final Vertx vertx;
+
+    private final long timeout;
+
+    private final Stats stats;
+
+    /**
+     * @param vertx instancia de vertx del verticle que usa el objeto
+     * @param name nombre con el que se reportan las métricas (p. ej. la entidad)
+     */
+    public SingleFlight(Vertx vertx, String name){
+        this(vertx, name, DeliveryOptions.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param vertx instancia de vertx del verticle que usa el objeto
+     * @param name nombre con el que se reportan las métricas (p. ej. la entidad)
+     * @param timeout ms máximos que una ejecución retiene su llave
+     */
+    public SingleFlight(Vertx vertx, String name, long timeout){
+        this.vertx = vertx;
+        this.timeout = timeout;
+        this.stats = STATS.computeIfAbsent(String.valueOf(name), n -> new Stats());
+    }
+
+    /**
+     * Ejecuta query si no hay otra ejecución en curso con la misma llave; de lo
+     * contrario handler recibe el resultado de la ejecución en curso.
+     *
+     * @param key llave normalizada de la lectura
+     * @param query operación a ejecutar; debe llamar al handler recibido una vez
+     * @param handler recibe el resultado
+     */
+    public void execute(String key, Handler<Handler<AsyncResult<T>>> query, Handler<AsyncResult<T>> handler){
+        stats.requests.incrementAndGet();
+        Flight current = inFlight.get(key);
+        if(current != null){
+            current.waiters.add(handler);
+            return;
+        }
+        Flight flight = new Flight();
+        flight.waiters.add(handler);
+        inFlight.put(key, flight);
+        stats.executions.incrementAndGet();
+        flight.timer = vertx.setTimer(timeout, id->{
+            stats.timeouts.incrementAndGet();
+            complete(key, flight, Future.failedFuture("Query timed out after " + timeout + " ms"));
+        });
+        try{
+            query.handle(result->{
+                vertx.cancelTimer(flight.timer);
+                complete(key, flight, result);
+            });
+        }catch(RuntimeException e){
+            vertx.cancelTimer(flight.timer);
+            complete(key, flight, Future.failedFuture(e));
+        }
+    }
+
+    /* Libera la llave y entrega el resultado a las peticiones en espera, una sola vez */
+    private void complete(String key, Flight flight, AsyncResult<T> result){
+        if(flight.done)
+            return;
+        flight.done = true;
+        // solo se libera la llave si no fue reemplazada después de forget()
+        if(inFlight.get(key) == flight)
+            inFlight.remove(key);
+        for(Handler<AsyncResult<T>> waiter : flight.waiters){
+            waiter.handle(result);
+        }
+    }
+
+    /**
+     * Libera todas las llaves en curso. Las peticiones que ya esperan reciben
+     * su resultado, pero las siguientes ejecutan un query nuevo. Se llama
+     * después de una escritura para no entregar datos previos a ella.
+     */
+    public void forget(){
+        inFlight.clear();
+    }
+
+    /**
+     * Regresa las métricas de cada entidad: peticiones recibidas, queries
+     * ejecutados, ejecuciones que excedieron el timeout y la razón entre
+     * peticiones y queries (collapseRatio).
+     *
+     * @return métricas por entidad
+     */
+    public static JsonObject metrics(){
+        JsonObject metrics = new JsonObject();
+        STATS.forEach((name, stats)->{
+            long requests = stats.requests.get();
+            long executions = stats.executions.get();
+            metrics.put(name, new JsonObject()
+                    .put("requests", requests)
+                    .put("executions", executions)
+                    .put("timeouts", stats.timeouts.get())
+                    .put("collapseRatio", executions == 0 ? 1d : (double) requests / executions));
+        });
+        return metrics;
+    }
+
+    private class Flight {
+        private final List<Handler<AsyncResult<T>>> waiters = new ArrayList<>();
+        private long timer;
+        private boolean done;
+    }
+
+    private static class Stats {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+    }
+}
@@ -1,7 +1,17 @@
 package com.conciencia.vertx.verticles.web;
 
+import static com.conciencia.vertx.VertxWebConfig.getStartupPhases;
+import static com.conciencia.vertx.VertxWebConfig.isReady;
+import static com.conciencia.vertx.VertxWebConfig.markNotReady;
+import com.conciencia.vertx.verticles.registry.EntityRegistry;
+import com.conciencia.vertx.verticles.repository.SingleFlight;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
 import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonArray;
@@ -28,6 +38,8 @@ public class WebServerVerticle extends AbstractVerticle {
     
     private static final String REST_API_CONTEXT = "/api/";
     
+    private static final String HEALTH_CONTEXT = "/health/";
+    
     private Boolean requireRestApi = true;
     
     private Boolean requireStaticContent = true;
@@ -41,6 +53,28 @@ public class WebServerVerticle extends AbstractVerticle {
         router.route(STATIC_CONTEXT).handler(StaticHandler.create().setDefaultContentEncoding("UTF-8"));
     }
     
+    /**
+     * Define el endpoint de disponibilidad. Responde 200 una vez que el arranque
+     * terminó y 503 mientras no lo haya hecho (o después de replegar el servidor).
+     * 
+     * También expone las métricas de lecturas agrupadas de los repositorios.
+     */
+    private void initHealth(Router router){
+        router.get(HEALTH_CONTEXT + "ready").handler(routingContext -> {
+            boolean ready = isReady();
+            HttpServerResponse response = routingContext.response();
+            response.putHeader("content-type", "application/json; charset=utf-8");
+            response.setStatusCode(ready ? 200 : 503).end(new JsonObject()
+                    .put("ready", ready)
+                    .put("phases", getStartupPhases()).encodePrettily());
+        });
+        router.get(HEALTH_CONTEXT + "coalescing").handler(routingContext -> {
+            HttpServerResponse response = routingContext.response();
+            response.putHeader("content-type", "application/json; charset=utf-8");
+            response.setStatusCode(200).end(SingleFlight.metrics().encodePrettily());
+        });
+    }
+    
     // <editor-fold defaultstate="collapsed" desc="DEFINICION DE MÉTODOS HTTP REST GENERICOS">
     
     private void initRestApi(Router router){
@@ -58,12 +92,11 @@ public class WebServerVerticle extends AbstractVerticle {
     private void defineGetAll(Router router) {
         router.get(REST_API_CONTEXT + ":type").handler(routingContext -> {
             String type = routingContext.request().getParam("type");
-            vertx.eventBus().request("get_" + type, null, hndlr -> {
+            request("get", type, null, hndlr -> {
                 if (hndlr.succeeded()) {
-                    JsonArray results = (JsonArray) hndlr.result().body();
                     HttpServerResponse response = routingContext.response();
                     response.putHeader("content-type", "application/json; charset=utf-8");
-                    response.setStatusCode(200).end(results.encodePrettily());
+                    response.setStatusCode(200).end(encodeResults(hndlr.result().body()));
                 } else {
                     HttpServerResponse response = routingContext.response();
                     response.putHeader("content-type", "application/json; charset=utf-8");
@@ -77,12 +110,11 @@ public class WebServerVerticle extends AbstractVerticle {
         router.post(REST_API_CONTEXT + "search").consumes("application/json").produces("application/json").handler(routingContext -> {
             JsonObject object = routingContext.getBodyAsJson();
             String type = object.getString("type");
-            vertx.eventBus().request("search_" + type, object, hndlr -> {
+            request("search", type, object, hndlr -> {
                 if (hndlr.succeeded()) {
-                    JsonArray results = (JsonArray) hndlr.result().body();
                     HttpServerResponse response = routingContext.response();
                     response.putHeader("content-type", "application/json; charset=utf-8");
-                    response.setStatusCode(200).end(results.encodePrettily());
+                    response.setStatusCode(200).end(encodeResults(hndlr.result().body()));
                 } else {
                     HttpServerResponse response = routingContext.response();
                     response.putHeader("content-type", "application/json; charset=utf-8");
@@ -92,11 +124,36 @@ public class WebServerVerticle extends AbstractVerticle {
         });
     }
 
+    /**
+     * Envía la petición al repositorio de la entidad. Las entidades de
+     * EntityRegistry se atienden en la dirección del shard de la entidad, con
+     * la entidad en un header; las demás en la dirección operación_entidad.
+     */
+    private void request(String operation, String type, Object body, Handler<AsyncResult<Message<Object>>> handler) {
+        if (EntityRegistry.contains(type)) {
+            DeliveryOptions options = new DeliveryOptions().addHeader(EntityRegistry.ENTITY_HEADER, type);
+            vertx.eventBus().request(EntityRegistry.address(operation, type), body, options, handler);
+        } else {
+            vertx.eventBus().request(operation + "_" + type, body, handler);
+        }
+    }
+
+    /**
+     * Los repositorios responden get all y search con el array JSON ya
+     * codificado en un Buffer, que se envía tal cual. Los consumidores que
+     * respondan con un JsonArray se siguen codificando aquí.
+     */
+    private Buffer encodeResults(Object results) {
+        if (results instanceof Buffer)
+            return (Buffer) results;
+        return Buffer.buffer(((JsonArray) results).encodePrettily());
+    }
+
     private void definePost(Router router) {
         router.post(REST_API_CONTEXT).consumes("application/json").produces("application/json").handler(routingContext -> {
             JsonObject object = routingContext.getBodyAsJson();
             String type = object.getString("type");
-            vertx.eventBus().request("add_" + type, object, hndlr -> {
+            request("add", type, object, hndlr -> {
                 if (hndlr.succeeded()) {
                     JsonObject added = (JsonObject) hndlr.result().body();
                     HttpServerResponse response = routingContext.response();
@@ -115,7 +172,7 @@ public class WebServerVerticle extends AbstractVerticle {
         router.put(REST_API_CONTEXT).consumes("application/json").produces("application/json").handler(routingContext -> {
             JsonObject object = routingContext.getBodyAsJson();
             String type = object.getString("type");
-            vertx.eventBus().request("edit_" + type, object, hndlr -> {
+            request("edit", type, object, hndlr -> {
                 if (hndlr.succeeded()) {
                     JsonObject edited = (JsonObject) hndlr.result().body();
                     HttpServerResponse response = routingContext.response();
@@ -134,7 +191,7 @@ public class WebServerVerticle extends AbstractVerticle {
         router.delete(REST_API_CONTEXT).consumes("application/json").produces("application/json").handler(routingContext -> {
             JsonObject object = routingContext.getBodyAsJson();
             String type = object.getString("type");
-            vertx.eventBus().request("delete_" + type, object, hndlr -> {
+            request("delete", type, object, hndlr -> {
                 if (hndlr.succeeded()) {
                     JsonObject deleted = (JsonObject) hndlr.result().body();
                     HttpServerResponse response = routingContext.response();
@@ -165,6 +222,8 @@ public class WebServerVerticle extends AbstractVerticle {
         HttpServer server = vertx.createHttpServer();
         Router router = Router.router(vertx);
         
+        initHealth(router);
+        
         if(requireStaticContent)
             initStaticContent(router);
         
@@ -191,6 +250,7 @@ public class WebServerVerticle extends AbstractVerticle {
      */
     @Override
     public void stop() throws Exception {
+        markNotReady();
         System.out.println("WebServer Verticle undeploy");
     }
 }
@@ -0,0 +1,348 @@
+package com.conciencia.vertx.verticles.audit;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+/**
+ * Pruebas de AuditLogVerticle contra un archivo temporal: líneas escritas,
+ * rotación, reintento de lotes y registros descartados al replegar.
+ *
+ * @author Ernesto Cantu
+ */
+@RunWith(VertxUnitRunner.class)
+public class AuditLogVerticleTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Vertx vertx;
+
+    private File file;
+
+    /* Bytes que el canal escribe antes de fallar; -1 sin límite */
+    private final AtomicInteger writeBudget = new AtomicInteger(-1);
+
+    /* Escrituras que fallaron */
+    private final AtomicInteger writeFailures = new AtomicInteger();
+
+    /* Indica si open() debe fallar */
+    private volatile boolean failOpen = false;
+
+    private final AtomicInteger openFailures = new AtomicInteger();
+
+    @Before
+    public void setUp(){
+        vertx = Vertx.vertx();
+        file = new File(folder.getRoot(), "audit.log");
+    }
+
+    @After
+    public void tearDown(TestContext context){
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void writesOneJsonLinePerRecord(TestContext context){
+        String id = deploy(context, new AuditLogVerticle(file.getPath(), 20, Long.MAX_VALUE, 1024));
+        AuditLog.record("gasto", "add", new JsonObject().put("monto", 10));
+        AuditLog.record("gasto", "update", new JsonObject().put("recid", 1));
+        AuditLog.record("cliente", "delete", new JsonObject().put("recid", 2));
+        waitFor(context, ()->lines(file).size() == 3);
+
+        List<String> lines = lines(file);
+        JsonObject first = new JsonObject(lines.get(0));
+        context.assertEquals("gasto", first.getString("entity"));
+        context.assertEquals("add", first.getString("op"));
+        context.assertEquals(10, first.getJsonObject("data").getInteger("monto"));
+        context.assertTrue(first.containsKey("ts"));
+        context.assertEquals("delete", new JsonObject(lines.get(2)).getString("op"));
+        undeploy(context, id);
+    }
+
+    @Test
+    public void rotatesWithoutOverwriting(TestContext context){
+        // cada lote rota el archivo y todas las rotaciones ocurren en el mismo ms
+        String id = deploy(context, new AuditLogVerticle(file.getPath(), 200, 1, 65536){
+            @Override
+            long now(){
+                return 1000;
+            }
+        });
+        int records = 20000;
+        for(int i = 0; i < records; i++)
+            AuditLog.record("gasto", "add", new JsonObject().put("i", i));
+        waitFor(context, ()->AuditLog.pending() == 0 && allLines().size() == records);
+        undeploy(context, id);
+
+        Set<Integer> written = new HashSet<>();
+        for(String line : allLines())
+            written.add(new JsonObject(line).getJsonObject("data").getInteger("i"));
+        context.assertEquals(records, written.size());
+        context.assertTrue(new File(folder.getRoot(), "audit.log.1000").exists());
+        context.assertTrue(new File(folder.getRoot(), "audit.log.1000.1").exists());
+        context.assertTrue(new File(folder.getRoot(), "audit.log.1000.2").exists());
+        context.assertEquals(0L, file.length());
+    }
+
+    @Test
+    public void resumesPartialWrite(TestContext context){
+        writeBudget.set(10);
+        String id = deploy(context, new FailingVerticle(20, Long.MAX_VALUE));
+        AuditLog.record("gasto", "add", new JsonObject().put("i", 1));
+        AuditLog.record("gasto", "add", new JsonObject().put("i", 2));
+        waitFor(context, ()->writeFailures.get() > 0);
+        context.assertEquals(10L, file.length());
+
+        writeBudget.set(-1);
+        AuditLog.record("gasto", "add", new JsonObject().put("i", 3));
+        waitFor(context, ()->lines(file).size() == 3);
+        List<String> lines = lines(file);
+        for(int i = 0; i < 3; i++)
+            context.assertEquals(i + 1, new JsonObject(lines.get(i)).getJsonObject("data").getInteger("i"));
+        undeploy(context, id);
+    }
+
+    @Test
+    public void reopensAfterFailedRotation(TestContext context){
+        String id = deploy(context, new FailingVerticle(20, 1));
+        failOpen = true;
+        AuditLog.record("gasto", "add", new JsonObject().put("i", 1));
+        waitFor(context, ()->openFailures.get() > 0);
+        AuditLog.record("gasto", "add", new JsonObject().put("i", 2));
+        waitFor(context, ()->openFailures.get() > 2);
+        context.assertEquals(1, AuditLog.pending());
+
+        failOpen = false;
+        waitFor(context, ()->rotated().length == 2);
+        context.assertEquals(0, AuditLog.pending());
+        context.assertEquals(2, allLines().size());
+        undeploy(context, id);
+    }
+
+    @Test
+    public void stopCountsUnwrittenRecordsAsDropped(TestContext context){
+        writeBudget.set(0);
+        long dropped = AuditLog.dropped();
+        String id = deploy(context, new FailingVerticle(20, Long.MAX_VALUE));
+        AuditLog.record("gasto", "add", new JsonObject().put("i", 1));
+        AuditLog.record("gasto", "add", new JsonObject().put("i", 2));
+        waitFor(context, ()->writeFailures.get() > 0);
+        AuditLog.record("gasto", "add", new JsonObject().put("i", 3));
+        undeploy(context, id);
+
+        context.assertEquals(dropped + 3, AuditLog.dropped());
+        context.assertEquals(0, AuditLog.pending());
+        context.assertEquals(0L, file.length());
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="UTILERIAS">
+
+    private String deploy(TestContext context, AuditLogVerticle verticle){
+        Async async = context.async();
+        String[] id = new String[1];
+        vertx.deployVerticle(verticle, new DeploymentOptions().setWorker(true), context.asyncAssertSuccess(result->{
+            id[0] = result;
+            async.complete();
+        }));
+        async.await(5000);
+        return id[0];
+    }
+
+    private void undeploy(TestContext context, String id){
+        Async async = context.async();
+        vertx.undeploy(id, context.asyncAssertSuccess(v->async.complete()));
+        async.await(5000);
+    }
+
+    private void waitFor(TestContext context, BooleanSupplier condition){
+        long limit = System.currentTimeMillis() + 10000;
+        while(!condition.getAsBoolean()){
+            if(System.currentTimeMillis() > limit)
+                context.fail("Condition not met in 10 s");
+            try{
+                Thread.sleep(10);
+            }catch(InterruptedException e){
+                context.fail(e);
+            }
+        }
+    }
+
+    private static List<String> lines(File file){
+        try{
+            return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        }catch(NoSuchFileException e){
+            // el archivo aún no existe o se está rotando
+            return new ArrayList<>();
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private File[] rotated(){
+        return folder.getRoot().listFiles((dir, name)->name.startsWith("audit.log."));
+    }
+
+    /* Líneas del archivo actual y de los rotados */
+    private List<String> allLines(){
+        List<String> lines = new ArrayList<>(lines(file));
+        for(File rotated : rotated())
+            lines.addAll(lines(rotated));
+        return lines;
+    }
+
+    /* Verticle cuyo archivo falla según writeBudget y failOpen */
+    private class FailingVerticle extends AuditLogVerticle {
+
+        FailingVerticle(long flushInterval, long maxFileSize){
+            super(file.getPath(), flushInterval, maxFileSize, 1024);
+        }
+
+        @Override
+        FileChannel open() throws IOException {
+            if(failOpen){
+                openFailures.incrementAndGet();
+                throw new IOException("open failed");
+            }
+            return new FailingChannel(super.open());
+        }
+    }
+
+    /* Canal que escribe hasta writeBudget bytes y después falla */
+    private class FailingChannel extends FileChannel {
+
+        private final FileChannel delegate;
+
+        FailingChannel(FileChannel delegate){
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int budget = writeBudget.get();
+            if(budget == 0){
+                writeFailures.incrementAndGet();
+                throw new IOException("write failed");
+            }
+            if(budget < 0)
+                return delegate.write(src);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + Math.min(budget, part.remaining()));
+            int written = delegate.write(part);
+            src.position(src.position() + written);
+            writeBudget.addAndGet(-written);
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+
+    // </editor-fold>
+}
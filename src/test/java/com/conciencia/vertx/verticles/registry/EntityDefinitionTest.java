@@ -0,0 +1,124 @@
+package com.conciencia.vertx.verticles.registry;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Pruebas de la generación de queries y parámetros de EntityDefinition.
+ *
+ * @author Ernesto Cantu
+ */
+public class EntityDefinitionTest {
+
+    private final EntityDefinition gastos = EntityDefinition.fromJson(new JsonObject()
+            .put("name", "gasto")
+            .put("table", "gastos")
+            .put("columns", new JsonArray().add("descripcion").add("monto")));
+
+    @Test
+    public void fromJsonAppliesDefaults(){
+        EntityDefinition definition = EntityDefinition.fromJson(new JsonObject()
+                .put("table", "clientes").put("columns", new JsonArray().add("nombre")));
+        assertEquals("clientes", definition.getName());
+        assertEquals("recid", definition.getKey());
+        assertTrue(definition.isGeneratedKey());
+        assertTrue(definition.methodAllowed("delete"));
+        assertEquals("SELECT `recid`, `nombre` FROM `clientes`", definition.getGetAllQuery());
+    }
+
+    @Test
+    public void restrictsMethods(){
+        EntityDefinition definition = EntityDefinition.fromJson(new JsonObject()
+                .put("table", "v").put("columns", new JsonArray().add("a"))
+                .put("methods", new JsonArray().add("get_all")));
+        assertTrue(definition.methodAllowed("get_all"));
+        assertFalse(definition.methodAllowed("add"));
+    }
+
+    @Test
+    public void addUsesOnlyPresentColumns(){
+        JsonObject add = new JsonObject().put("type", "gasto").put("monto", 10);
+        assertEquals("INSERT INTO `gastos` (`monto`) VALUES (?)", gastos.addQuery(add));
+        assertEquals(new JsonArray().add(10).encode(), gastos.addParams(add).encode());
+    }
+
+    @Test
+    public void addIgnoresGeneratedKey(){
+        JsonObject add = new JsonObject().put("recid", 5).put("descripcion", "luz");
+        assertEquals("INSERT INTO `gastos` (`descripcion`) VALUES (?)", gastos.addQuery(add));
+    }
+
+    @Test
+    public void addWithoutColumnsUsesDefaults(){
+        assertEquals("INSERT INTO `gastos` () VALUES ()", gastos.addQuery(new JsonObject().put("type", "gasto")));
+        assertEquals(0, gastos.addParams(new JsonObject()).size());
+    }
+
+    @Test
+    public void updateLeavesMissingColumnsUntouched(){
+        JsonObject update = new JsonObject().put("type", "gasto").put("recid", 3).put("descripcion", "agua");
+        assertEquals("UPDATE `gastos` SET `descripcion` = ? WHERE `recid` = ?", gastos.updateQuery(update));
+        assertEquals(new JsonArray().add("agua").add(3).encode(), gastos.updateParams(update).encode());
+    }
+
+    @Test
+    public void updateBindsExplicitNulls(){
+        JsonObject update = new JsonObject().put("recid", 3).putNull("monto");
+        assertEquals("UPDATE `gastos` SET `monto` = ? WHERE `recid` = ?", gastos.updateQuery(update));
+        assertEquals(new JsonArray().addNull().add(3).encode(), gastos.updateParams(update).encode());
+    }
+
+    @Test
+    public void updateWithoutColumnsReturnsNull(){
+        assertNull(gastos.updateQuery(new JsonObject().put("recid", 3).put("type", "gasto")));
+    }
+
+    @Test
+    public void searchIgnoresTypeField(){
+        JsonObject search = new JsonObject().put("type", "gasto").put("monto", 10).put("otro", 1);
+        assertEquals("SELECT `recid`, `descripcion`, `monto` FROM `gastos` WHERE `monto` = ?",
+                gastos.searchQuery(search));
+        assertEquals(new JsonArray().add(10).encode(), gastos.searchParams(search).encode());
+        assertEquals(gastos.getGetAllQuery(), gastos.searchQuery(new JsonObject().put("type", "gasto")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTypeColumn(){
+        EntityDefinition.fromJson(new JsonObject().put("table", "t")
+                .put("columns", new JsonArray().add("nombre").add("type")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTypeKey(){
+        EntityDefinition.fromJson(new JsonObject().put("table", "t").put("key", "type")
+                .put("columns", new JsonArray().add("nombre")));
+    }
+
+    @Test
+    public void cachesQueriesPerColumnCombination(){
+        String first = gastos.updateQuery(new JsonObject().put("recid", 1).put("monto", 1));
+        String second = gastos.updateQuery(new JsonObject().put("recid", 2).put("monto", 2));
+        assertSame(first, second);
+    }
+
+    @Test
+    public void deleteUsesKey(){
+        assertEquals("DELETE FROM `gastos` WHERE `recid` = ?", gastos.getDeleteQuery());
+        assertEquals(new JsonArray().add(7).encode(), gastos.deleteParams(new JsonObject().put("recid", 7)).encode());
+    }
+
+    @Test
+    public void quotesIdentifiers(){
+        EntityDefinition definition = EntityDefinition.fromJson(new JsonObject()
+                .put("table", "a`b").put("key", "id").put("generatedKey", false)
+                .put("columns", new JsonArray().add("c")));
+        assertEquals("INSERT INTO `a``b` (`id`, `c`) VALUES (?, ?)",
+                definition.addQuery(new JsonObject().put("id", 1).put("c", 2)));
+    }
+}
@@ -0,0 +1,133 @@
+package com.conciencia.vertx.verticles.repository;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Pruebas de la codificación JSON de JsonRowMapper.
+ *
+ * @author Ernesto Cantu
+ */
+public class JsonRowMapperTest {
+
+    private final JsonRowMapper mapper = new JsonRowMapper();
+
+    private String encode(List<String> columns, Object[]... rows){
+        List<JsonArray> list = new ArrayList<>();
+        for(Object[] row : rows)
+            list.add(new JsonArray(new ArrayList<>(Arrays.asList(row))));
+        return mapper.encode(columns, list).toString("UTF-8");
+    }
+
+    private String encode(Object... values){
+        Object[][] rows = new Object[values.length][];
+        for(int i = 0; i < values.length; i++)
+            rows[i] = new Object[]{values[i]};
+        return encode(Collections.singletonList("c"), rows);
+    }
+
+    @Test
+    public void emptyResult(){
+        assertEquals("[]", encode(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void multipleColumnsAndRows(){
+        assertEquals("[{\"id\":1,\"name\":\"a\"},{\"id\":2,\"name\":null}]",
+                encode(Arrays.asList("id", "name"), new Object[]{1, "a"}, new Object[]{2, null}));
+    }
+
+    @Test
+    public void escapesQuotesBackslashAndControlCharacters(){
+        assertEquals("[{\"c\":\"a\\\"b\\\\c\\n\\r\\t\\b\\f\\u0001\\u001f\"}]",
+                encode("a\"b\\c\n\r\t\b\f\u0001\u001f"));
+    }
+
+    @Test
+    public void escapesColumnNames(){
+        assertEquals("[{\"a\\\"b\":1}]", encode(Collections.singletonList("a\"b"), new Object[]{1}));
+    }
+
+    @Test
+    public void keepsNonAsciiCharacters(){
+        assertEquals("[{\"c\":\"año ñ €\"},{\"c\":\"\"}]", encode("año ñ €", ""));
+    }
+
+    @Test
+    public void writesLongLimits(){
+        assertEquals("[{\"c\":" + Long.MIN_VALUE + "},{\"c\":" + Long.MAX_VALUE + "},{\"c\":0},{\"c\":-42}]",
+                encode(Long.MIN_VALUE, Long.MAX_VALUE, 0, -42L));
+    }
+
+    @Test
+    public void writesNaNAndInfinityAsNull(){
+        assertEquals("[{\"c\":1.5},{\"c\":null},{\"c\":null},{\"c\":null}]",
+                encode(1.5d, Double.NaN, Double.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void writesFloatsWithTheirShortestRepresentation(){
+        assertEquals("[{\"c\":0.1},{\"c\":-2.5},{\"c\":3.4028235E38},{\"c\":0.1}]",
+                encode(0.1f, -2.5f, Float.MAX_VALUE, 0.1d));
+    }
+
+    @Test
+    public void writesBooleansAndDecimals(){
+        assertEquals("[{\"c\":true},{\"c\":false}]", encode(true, false));
+        assertEquals("[{\"c\":12.50}]", encode(new BigDecimal("12.50")));
+    }
+
+    @Test
+    public void handlesMixedTypesInOneColumn(){
+        assertEquals("[{\"c\":null},{\"c\":1},{\"c\":\"x\\\"\"},{\"c\":2.5},{\"c\":true},{\"c\":7}]",
+                encode(null, 1, "x\"", 2.5d, true, 7L));
+    }
+
+    /* Conexión que responde query/queryWithParams con el resultado indicado y registra las llamadas */
+    @SuppressWarnings("unchecked")
+    private SQLConnection connection(AsyncResult<ResultSet> result, List<String> calls){
+        return (SQLConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{SQLConnection.class}, (proxy, method, args)->{
+            calls.add(method.getName());
+            if(method.getName().startsWith("query"))
+                ((Handler<AsyncResult<ResultSet>>) args[args.length - 1]).handle(result);
+            return null;
+        });
+    }
+
+    @Test
+    public void queryEncodesResultSetAndClosesConnection(){
+        ResultSet rs = new ResultSet().setColumnNames(Arrays.asList("id", "name"))
+                .setResults(Arrays.asList(new JsonArray().add(1).add("a"), new JsonArray().add(2).add("b")));
+        List<String> calls = new ArrayList<>();
+        List<AsyncResult<Buffer>> results = new ArrayList<>();
+        mapper.query(connection(Future.succeededFuture(rs), calls), "SELECT", new JsonArray().add(1), results::add);
+        assertEquals(Arrays.asList("queryWithParams", "close"), calls);
+        assertEquals(1, results.size());
+        assertEquals("[{\"id\":1,\"name\":\"a\"},{\"id\":2,\"name\":\"b\"}]", results.get(0).result().toString("UTF-8"));
+    }
+
+    @Test
+    public void queryFailureClosesConnection(){
+        List<String> calls = new ArrayList<>();
+        List<AsyncResult<Buffer>> results = new ArrayList<>();
+        mapper.query(connection(Future.failedFuture("boom"), calls), "SELECT", null, results::add);
+        assertEquals(Arrays.asList("query", "close"), calls);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).failed());
+    }
+}
@@ -0,0 +1,180 @@
+package com.conciencia.vertx.verticles.repository;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Pruebas de SingleFlight: agrupación, timeout, forget() y resultados tardíos.
+ *
+ * Cada prueba corre en el event loop, como lo hacen los verticles.
+ *
+ * @author Ernesto Cantu
+ */
+@RunWith(VertxUnitRunner.class)
+public class SingleFlightTest {
+
+    private Vertx vertx;
+
+    /* Handlers recibidos por las ejecuciones del query, en orden */
+    private List<Handler<AsyncResult<String>>> executions;
+
+    /* Resultados entregados a las peticiones, en orden */
+    private List<AsyncResult<String>> results;
+
+    @Before
+    public void setUp(){
+        vertx = Vertx.vertx();
+        executions = new ArrayList<>();
+        results = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown(TestContext context){
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    /* Query que no termina hasta que la prueba llama a su handler */
+    private void pending(Handler<AsyncResult<String>> done){
+        executions.add(done);
+    }
+
+    private void onContext(TestContext context, Handler<Void> test){
+        Async async = context.async();
+        vertx.runOnContext(v->{
+            test.handle(null);
+            async.complete();
+        });
+    }
+
+    @Test
+    public void collapsesIdenticalReads(TestContext context){
+        onContext(context, v->{
+            SingleFlight<String> flight = new SingleFlight<>(vertx, "collapse");
+            flight.execute("k", this::pending, results::add);
+            flight.execute("k", this::pending, results::add);
+            flight.execute("k", this::pending, results::add);
+            flight.execute("otra", this::pending, results::add);
+            context.assertEquals(2, executions.size());
+
+            executions.get(0).handle(Future.succeededFuture("x"));
+            context.assertEquals(3, results.size());
+            for(AsyncResult<String> result : results)
+                context.assertEquals("x", result.result());
+
+            JsonObject metrics = SingleFlight.metrics().getJsonObject("collapse");
+            context.assertEquals(4L, metrics.getLong("requests"));
+            context.assertEquals(2L, metrics.getLong("executions"));
+            context.assertEquals(2d, metrics.getDouble("collapseRatio"));
+        });
+    }
+
+    @Test
+    public void releasesKeyAfterCompletion(TestContext context){
+        onContext(context, v->{
+            SingleFlight<String> flight = new SingleFlight<>(vertx, "release");
+            flight.execute("k", this::pending, results::add);
+            executions.get(0).handle(Future.succeededFuture("x"));
+            flight.execute("k", this::pending, results::add);
+            context.assertEquals(2, executions.size());
+        });
+    }
+
+    @Test
+    public void timesOutStuckQueries(TestContext context){
+        Async async = context.async();
+        vertx.runOnContext(v->{
+            SingleFlight<String> flight = new SingleFlight<>(vertx, "timeout", 50);
+            flight.execute("k", this::pending, results::add);
+            flight.execute("k", this::pending, results::add);
+            vertx.setTimer(200, id->{
+                context.assertEquals(2, results.size());
+                context.assertTrue(results.get(0).failed());
+                context.assertTrue(results.get(1).failed());
+                context.assertEquals(1L, SingleFlight.metrics().getJsonObject("timeout").getLong("timeouts"));
+
+                // la llave quedó libre: la siguiente lectura ejecuta otro query
+                flight.execute("k", this::pending, results::add);
+                context.assertEquals(2, executions.size());
+                async.complete();
+            });
+        });
+    }
+
+    @Test
+    public void ignoresLateResultAfterTimeout(TestContext context){
+        Async async = context.async();
+        vertx.runOnContext(v->{
+            SingleFlight<String> flight = new SingleFlight<>(vertx, "late", 50);
+            flight.execute("k", this::pending, results::add);
+            vertx.setTimer(200, id->{
+                context.assertEquals(1, results.size());
+                flight.execute("k", this::pending, results::add);
+                context.assertEquals(2, executions.size());
+
+                // el resultado tardío no se entrega otra vez ni libera la llave del nuevo query
+                executions.get(0).handle(Future.succeededFuture("tarde"));
+                context.assertEquals(1, results.size());
+                flight.execute("k", this::pending, results::add);
+                context.assertEquals(2, executions.size());
+
+                executions.get(1).handle(Future.succeededFuture("nuevo"));
+                context.assertEquals(3, results.size());
+                context.assertEquals("nuevo", results.get(1).result());
+                context.assertEquals("nuevo", results.get(2).result());
+                async.complete();
+            });
+        });
+    }
+
+    @Test
+    public void forgetStartsNewFlight(TestContext context){
+        onContext(context, v->{
+            SingleFlight<String> flight = new SingleFlight<>(vertx, "forget");
+            List<AsyncResult<String>> before = new ArrayList<>();
+            flight.execute("k", this::pending, before::add);
+            flight.forget();
+            flight.execute("k", this::pending, results::add);
+            context.assertEquals(2, executions.size());
+
+            // terminar la ejecución previa a forget() no libera la llave de la nueva
+            executions.get(0).handle(Future.succeededFuture("viejo"));
+            context.assertEquals("viejo", before.get(0).result());
+            context.assertTrue(results.isEmpty());
+            flight.execute("k", this::pending, results::add);
+            context.assertEquals(2, executions.size());
+
+            executions.get(1).handle(Future.succeededFuture("nuevo"));
+            context.assertEquals(2, results.size());
+            context.assertEquals("nuevo", results.get(0).result());
+            context.assertEquals("nuevo", results.get(1).result());
+        });
+    }
+
+    @Test
+    public void failsWaitersWhenQueryThrows(TestContext context){
+        onContext(context, v->{
+            SingleFlight<String> flight = new SingleFlight<>(vertx, "throws");
+            flight.execute("k", done->{
+                throw new IllegalStateException("boom");
+            }, results::add);
+            context.assertEquals(1, results.size());
+            context.assertTrue(results.get(0).failed());
+            context.assertEquals("boom", results.get(0).cause().getMessage());
+
+            flight.execute("k", this::pending, results::add);
+            context.assertEquals(1, executions.size());
+        });
+    }
+}